@@ -25,11 +25,16 @@ e. ChecklistAsyncJoke.html
 5. Notes:
 a. This AsyncJokeAdminClient can connect to multiple admin servers at the same time. Admin servers are differentiated by different port numbers.
 In this current implementation, the address of the admin server is hard coded, but a more flexible implementation is also possible.
-b. This AsyncJokeAdminClient is capable to send server mode change command to the server, which can switch the server between joke
-and proverb modes, and also to send server shutdown command to the server.
+b. This AsyncJokeAdminClient is capable to send server mode change command to the server, which can switch the server to the next category
+(between joke and proverb modes by default) or to a given one, to send catalog reload, request tracing and stats commands to the server, and also to send server shutdown command to the server.
 c. The AsyncJokeAdminClient will have two lists storing servers' port numbers and their names. User can choose which server to send by typing their names into the console.
 After a server has been shutdown, its information will be removed from both lists. However, the lists inside AsyncJokeClient will not get updated, this leaves some room for improvements.
 d. By default, the port number of each admin server is the port number of the joke server add by 1.
+e. A command can be sent to several admin servers at once, by typing * (all servers) or comma-separated letters (e.g. A,C) instead of one letter,
+e.g. "*" toggles every server, "* mode joke" puts every server in joke mode, "A,C shutdown fast" shuts down servers A and C. All servers are contacted at the same time,
+and one summary is printed when all of them have answered or timed out.
+A fan-out shutdown waits for the given number of seconds plus a margin, or else for the longest drain timeout the servers report in their "stats",
+and a server that closes the connection without answering counts as failed.
 
 ----------------------------------------------------------*/
 
@@ -38,7 +43,34 @@ d. By default, the port number of each admin server is the port number of the jo
 import java.io.*;
 // Get the Java networking libraries
 import java.net.*;
+// Get the Java NIO libraries for non-blocking fan-out
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+// AdminTarget class to hold the state of one admin server during a fan-out
+class AdminTarget {
+    String name;
+    int port;
+    SocketChannel channel;
+    // Command to send, followed by a line break
+    ByteBuffer toServer;
+    // Bytes received from the admin server so far
+    ByteArrayOutputStream fromServer = new ByteArrayOutputStream();
+    // Result line from the admin server, or a description of what went wrong
+    String result;
+    boolean isSuccess = false;
+
+    AdminTarget(String n, int p, String command) {
+        name = n;
+        port = p;
+        toServer = ByteBuffer.wrap((command + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
 
 public class AsyncJokeAdminClient {
     // Define default admin server port number
@@ -51,6 +83,14 @@ public class AsyncJokeAdminClient {
     private static ArrayList<Integer> SERVER_PORT_TABLE = new ArrayList<>();
     // Initialize an array to as alphabet, to be used for server names
     private static char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    // Define how long to wait for each admin server during a fan-out
+    private static final long FAN_OUT_TIMEOUT = Long.getLong("asyncjoke.adminTimeout", 5000);
+    // Shutdown waits until the servers have drained their pending replies, for as long as they are told to, or as their own drain timeout,
+    // plus a margin for saving the ClientStatusTable. The fixed timeout is only used for servers that do not report their drain timeout
+    private static final long FAN_OUT_SHUTDOWN_TIMEOUT = Long.getLong("asyncjoke.adminShutdownTimeout", 80000);
+    private static final long FAN_OUT_SHUTDOWN_MARGIN = 10000;
+    // Commands that can be sent to several admin servers at once, anything else is refused before it is sent
+    private static final List<String> FAN_OUT_COMMANDS = Arrays.asList("toggle", "mode", "reload", "jfr", "stats", "shutdown");
 
     static void sendSignal(String command, String serverName, int serverPort) {
         Socket sock;
@@ -79,6 +119,172 @@ public class AsyncJokeAdminClient {
         }
     }
 
+    /*
+    Method to send the same command to several admin servers at the same time, and print one summary once all of them have answered.
+    Every admin server gets its own non-blocking channel, and a single Selector drives all of them, so the whole fan-out takes
+    about one round-trip time instead of one per server. An admin server that has not answered before the timeout is given up.
+    Returns the targets, so the caller can tell which of them succeeded.
+     */
+    static ArrayList<AdminTarget> fanOut(String command, ArrayList<Integer> listIndexes, long timeout) {
+        long startTime = System.currentTimeMillis();
+        ArrayList<AdminTarget> targets = exchange(command, listIndexes, timeout);
+        int successCount = 0;
+        for (AdminTarget target : targets) {
+            if (target.isSuccess) {
+                successCount++;
+            }
+        }
+
+        // Print the summary
+        System.out.println("Command \"" + command + "\" sent to " + targets.size() + " admin server(s) in " + (System.currentTimeMillis() - startTime) + " ms, "
+                + successCount + " succeeded, " + (targets.size() - successCount) + " failed.");
+        for (AdminTarget target : targets) {
+            System.out.println("Server " + target.name + " at " + target.port + ": " + (target.result.isEmpty() ? "Done." : target.result));
+        }
+        return targets;
+    }
+
+    // Method to send the same command to several admin servers at the same time, and collect their answers without printing them
+    static ArrayList<AdminTarget> exchange(String command, ArrayList<Integer> listIndexes, long timeout) {
+        ArrayList<AdminTarget> targets = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + timeout;
+        int remaining = 0;
+
+        try (Selector selector = Selector.open()) {
+            // Start connecting to every admin server without waiting for any of them
+            for (int listIndex : listIndexes) {
+                AdminTarget target = new AdminTarget(SERVER_NAME_TABLE.get(listIndex), SERVER_PORT_TABLE.get(listIndex), command);
+                targets.add(target);
+                try {
+                    target.channel = SocketChannel.open();
+                    target.channel.configureBlocking(false);
+                    boolean isConnected = target.channel.connect(new InetSocketAddress(DEFAULT_ADMIN_ADDR, target.port));
+                    target.channel.register(selector, isConnected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, target);
+                    remaining++;
+                } catch (IOException ioe) {
+                    target.result = "Socket error: " + ioe.getMessage();
+                }
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            while (remaining > 0) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                selector.select(wait);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    AdminTarget target = (AdminTarget) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            target.channel.finishConnect();
+                            key.interestOps(SelectionKey.OP_WRITE);
+                        } else if (key.isWritable()) {
+                            target.channel.write(target.toServer);
+                            if (!target.toServer.hasRemaining()) {
+                                key.interestOps(SelectionKey.OP_READ);
+                            }
+                        } else if (key.isReadable()) {
+                            buffer.clear();
+                            int count = target.channel.read(buffer);
+                            if (count > 0) {
+                                target.fromServer.write(buffer.array(), 0, count);
+                            }
+                            String text = new String(target.fromServer.toByteArray(), StandardCharsets.UTF_8);
+                            // The admin server answers with one line, closing the connection before a whole line means it failed
+                            if (text.indexOf('\n') != -1) {
+                                target.result = text.trim();
+                                target.isSuccess = true;
+                                key.cancel();
+                                remaining--;
+                            } else if (count == -1) {
+                                target.result = text.isEmpty() ? "Connection closed without an answer." : "Connection closed after a partial answer: " + text.trim();
+                                key.cancel();
+                                remaining--;
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        target.result = "Socket error: " + ioe.getMessage();
+                        key.cancel();
+                        remaining--;
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            System.out.println("Socket error.");
+            ioe.printStackTrace();
+        }
+
+        // Close every channel, and give up the admin servers that did not answer in time
+        for (AdminTarget target : targets) {
+            if (target.result == null) {
+                target.result = "No answer within " + timeout + " ms.";
+            }
+            try {
+                if (target.channel != null) {
+                    target.channel.close();
+                }
+            } catch (IOException ioe) {
+                // Nothing left to do with this channel
+            }
+        }
+        return targets;
+    }
+
+    /*
+    Method to work out how long to wait for a shutdown fan-out: the number of seconds given to the command if any,
+    or else the longest drain timeout reported by the "stats" of the servers, which follows the delays of their tiers, plus a margin.
+     */
+    static long getShutdownTimeout(String command, ArrayList<Integer> listIndexes) {
+        String[] options = command.trim().split("\\s+");
+        for (int i = 1; i < options.length; i++) {
+            try {
+                return Long.parseLong(options[i]) * 1000 + FAN_OUT_SHUTDOWN_MARGIN;
+            } catch (NumberFormatException nfe) {
+                // Not the number of seconds, e.g. "fast"
+            }
+        }
+        long timeout = 0;
+        for (AdminTarget target : exchange("stats", listIndexes, FAN_OUT_TIMEOUT)) {
+            long drainTimeout = -1;
+            for (String pair : target.isSuccess ? target.result.split("\\s+") : new String[0]) {
+                if (pair.startsWith("drainTimeout=")) {
+                    try {
+                        drainTimeout = Long.parseLong(pair.substring("drainTimeout=".length()));
+                    } catch (NumberFormatException nfe) {
+                        // Not reported properly, the fixed timeout is used
+                    }
+                }
+            }
+            timeout = Math.max(timeout, (drainTimeout == -1) ? FAN_OUT_SHUTDOWN_TIMEOUT : drainTimeout + FAN_OUT_SHUTDOWN_MARGIN);
+        }
+        return timeout;
+    }
+
+    // Helper method to turn "*" or a comma-separated list of server names into list indexes, returns null if any name is unknown
+    static ArrayList<Integer> parseTargets(String names) {
+        ArrayList<Integer> listIndexes = new ArrayList<>();
+        if (names.equals("*")) {
+            for (int i = 0; i < SERVER_NAME_TABLE.size(); i++) {
+                listIndexes.add(i);
+            }
+            return listIndexes;
+        }
+        for (String name : names.split(",")) {
+            int listIndex = SERVER_NAME_TABLE.indexOf(name.toUpperCase());
+            if (listIndex == -1) {
+                return null;
+            }
+            if (!listIndexes.contains(listIndex)) {
+                listIndexes.add(listIndex);
+            }
+        }
+        return listIndexes;
+    }
+
     public static void main(String args[]) {
         // If user has defined port number(s) in the command line argument(s)
         if (args.length > 0) {
@@ -128,26 +334,67 @@ public class AsyncJokeAdminClient {
                     allPortName = allPortName + SERVER_NAME_TABLE.get(i) + " ";
                 }
                 // Print hints for user
-                System.out.print("Enter one of the following letter [ " + allPortName + "] to change the corresponding server mode, or [server letter] shutdown to shut down a server: ");
+                System.out.print("Enter one of the following letter [ " + allPortName + "] to change the corresponding server mode, [server letter] reload [file] to reload its jokes/proverbs, [server letter] jfr start [file] / jfr stop to record request stages, [server letter] stats to see the resources it uses, [server letter] mode [category] to switch it to a category, "
+                        + "or [server letter] shutdown [fast] [seconds] to shut down a server. Use * or comma-separated letters (e.g. A,C) instead of one letter to send to several servers at once: ");
                 // Flush output buffer to clean it
                 System.out.flush();
 
                 // Read user's input and separate by white-spaces
                 command = in.readLine();
                 String[] userInputStrings = command.split("\\s+");
+
+                // If input starts with * or several server names, then send the command (toggling by default) to all of them at once
+                if (userInputStrings[0].equals("*") || userInputStrings[0].contains(",")) {
+                    ArrayList<Integer> listIndexes = parseTargets(userInputStrings[0]);
+                    if (listIndexes == null || listIndexes.isEmpty()) {
+                        System.out.println("Invalid command!");
+                        continue;
+                    }
+                    String fanOutCommand = command.trim().substring(userInputStrings[0].length()).trim();
+                    if (!fanOutCommand.isEmpty() && !FAN_OUT_COMMANDS.contains(fanOutCommand.split("\\s+")[0].toLowerCase())) {
+                        System.out.println("Invalid command!");
+                        continue;
+                    }
+                    boolean isShutdown = fanOutCommand.toLowerCase().startsWith("shutdown");
+                    ArrayList<AdminTarget> targets = fanOut(fanOutCommand.isEmpty() ? "toggle" : fanOutCommand, listIndexes, isShutdown ? getShutdownTimeout(fanOutCommand, listIndexes) : FAN_OUT_TIMEOUT);
+                    // Forget the admin servers that have been shut down
+                    if (isShutdown) {
+                        for (AdminTarget target : targets) {
+                            if (target.isSuccess) {
+                                int listIndex = SERVER_NAME_TABLE.indexOf(target.name);
+                                SERVER_PORT_TABLE.remove(listIndex);
+                                SERVER_NAME_TABLE.remove(listIndex);
+                            }
+                        }
+                    }
+                    continue;
+                }
+
                 // If input is a valid server name, then send joke/proverb mode toggling signal to that server
                 if (userInputStrings.length == 1 && SERVER_NAME_TABLE.indexOf(userInputStrings[0].toUpperCase()) != -1) {
                     // Send toggling command to server
                     int listIndex = SERVER_NAME_TABLE.indexOf(userInputStrings[0].toUpperCase());
                     sendSignal(command, DEFAULT_ADMIN_ADDR, SERVER_PORT_TABLE.get(listIndex));
                     System.out.println("Server mode toggling signal sent to Admin server " + userInputStrings[0].toUpperCase() + ".");
-                } else if (userInputStrings.length == 2 && userInputStrings[1].equalsIgnoreCase("shutdown")) {
-                    // If input is a valid server name plus "shutdown", then send shutdown signal to that server
+                } else if (userInputStrings.length >= 2 && userInputStrings[1].equalsIgnoreCase("shutdown") && SERVER_NAME_TABLE.indexOf(userInputStrings[0].toUpperCase()) != -1) {
+                    // If input is a valid server name plus "shutdown" and its options, then send shutdown signal to that server
+                    // The reply only comes back once the server has drained its pending replies
                     int listIndex = SERVER_NAME_TABLE.indexOf(userInputStrings[0].toUpperCase());
-                    sendSignal(userInputStrings[1], DEFAULT_ADMIN_ADDR, SERVER_PORT_TABLE.get(listIndex));
+                    sendSignal(command.trim().substring(userInputStrings[0].length()).trim(), DEFAULT_ADMIN_ADDR, SERVER_PORT_TABLE.get(listIndex));
                     SERVER_PORT_TABLE.remove(listIndex);
                     SERVER_NAME_TABLE.remove(listIndex);
                     System.out.println("Server shutdown signal sent to Admin server " + userInputStrings[0].toUpperCase() + ".");
+                } else if (userInputStrings.length >= 2 && (userInputStrings[1].equalsIgnoreCase("jfr") || userInputStrings[1].equalsIgnoreCase("stats") || userInputStrings[1].equalsIgnoreCase("mode")) && SERVER_NAME_TABLE.indexOf(userInputStrings[0].toUpperCase()) != -1) {
+                    // If input is a valid server name plus "jfr start [file]" or "jfr stop", then start or stop the request stage recording of that server
+                    // If input is a valid server name plus "stats", then print the resources used by that server
+                    // If input is a valid server name plus "mode [category]", then switch that server to the category, or print its current mode
+                    int listIndex = SERVER_NAME_TABLE.indexOf(userInputStrings[0].toUpperCase());
+                    sendSignal(command.trim().substring(userInputStrings[0].length()).trim(), DEFAULT_ADMIN_ADDR, SERVER_PORT_TABLE.get(listIndex));
+                } else if (userInputStrings.length >= 2 && userInputStrings[1].equalsIgnoreCase("reload") && SERVER_NAME_TABLE.indexOf(userInputStrings[0].toUpperCase()) != -1) {
+                    // If input is a valid server name plus "reload" and an optional file name, then ask that server to reload its jokes/proverbs
+                    int listIndex = SERVER_NAME_TABLE.indexOf(userInputStrings[0].toUpperCase());
+                    sendSignal(command.trim().substring(userInputStrings[0].length()).trim(), DEFAULT_ADMIN_ADDR, SERVER_PORT_TABLE.get(listIndex));
+                    System.out.println("Catalog reload signal sent to Admin server " + userInputStrings[0].toUpperCase() + ".");
                 } else {
                     // Other inputs are not supported
                     System.out.println("Invalid command!");
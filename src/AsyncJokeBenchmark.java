@@ -0,0 +1,471 @@
+/*--------------------------------------------------------
+
+1. AsyncJoke contributors / 10/19/2026, added to the AsyncJoke programs written by Mingfei Shao (11/06/2016):
+
+2. Java version used: Java 11 or later, as for AsyncJokeServer (which uses the Java Flight Recorder API)
+
+3. Precise command-line compilation examples / instructions:
+> javac AsyncJokeServer.java ReplyBatch.java AsyncJokeBenchmark.java
+
+4. Precise examples / instructions to run this program:
+> java AsyncJokeBenchmark
+to run the default sweep and write the report to AsyncJokeBenchmark.csv.
+or
+> java AsyncJokeBenchmark <reportFile> <baselineFile>
+to write the report to reportFile, and compare it with a report stored earlier in baselineFile.
+The sweep is set with system properties, e.g.
+> java -Dasyncjoke.bench.cores=1,2,4 -Dasyncjoke.bench.clients=1,10,50 -Dasyncjoke.bench.requests=20 -Dasyncjoke.bench.delay=100
+-Dasyncjoke.bench.configs="heap=;mapped=-Dasyncjoke.store=mapped" AsyncJokeBenchmark
+
+5. List of files needed for running the program:
+a. AsyncJokeServer.java
+b. AsyncJokeBenchmark.java
+c. ReplyBatch.java
+
+5. Notes:
+a. For every combination of core count, client count and server configuration, this AsyncJokeBenchmark starts an AsyncJokeServer
+as a local process, in its own temporary working directory, with -XX:ActiveProcessorCount=<cores> and a shortened delay
+(-Dasyncjoke.bench.delay milliseconds, 100 by default, instead of the 40 second sleep interval).
+b. The simulated clients each send -Dasyncjoke.bench.requests requests one after the other, each waiting for its reply before sending the next one.
+Before that, each client sends -Dasyncjoke.bench.warmup requests (5 by default) that are not measured, so the first requests of a fresh server
+JVM do not end up as its tail latency, and the measured requests of all clients start together.
+All replies are received on one UDP socket and matched to their request by request ID, in the same way as AsyncJokeClient does.
+c. While the clients are running, the "stats" command of the admin server is polled, and the highest thread count, file descriptor count
+and heap use are kept. The server is then shut down with "shutdown fast" before the next run.
+d. A server configuration is <name>=<server JVM options>, and several of them are separated by semicolons, so that e.g. the batch window,
+the fair scheduling batch size or the ClientStatusTable backend can be swept as well.
+e. The report is a CSV file with one line per run: cores, clients, config, delay_ms, requests, completed, lost, throughput (replies per second),
+p50_ms, p99_ms, p999_ms (latency from connecting to the server until the reply has arrived), threads, fds and heap_mb.
+A percentile is left blank unless at least 10 latencies were measured beyond it, e.g. p99 needs 1000 replies and p999 needs 10000.
+f. With a baseline file, every run is compared with the run of the same cores, clients and config in the baseline. A run whose throughput
+has dropped, or whose p99 latency has grown (when both runs have one), by more than -Dasyncjoke.bench.tolerance percent (10 by default) is a regression,
+and the program exits with status 1 if there is any, so it can be used as a check before each deploy.
+
+----------------------------------------------------------*/
+
+// Get the Input Output libraries
+
+import java.io.*;
+// Get the Java networking libraries
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+// Get the Java utility libraries
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// BenchmarkResult class to hold what has been measured in one run, one line of the report
+class BenchmarkResult {
+    // Define the columns of the report, the first three identify a run
+    static final String HEADER = "cores,clients,config,delay_ms,requests,completed,lost,throughput,p50_ms,p99_ms,p999_ms,threads,fds,heap_mb";
+    int cores;
+    int clients;
+    String config;
+    long delay;
+    int requests;
+    int completed;
+    int lost;
+    double throughput;
+    double p50;
+    double p99;
+    double p999;
+    long threads;
+    long fds;
+    double heapMb;
+
+    // Getter method of the key of the run, used to find the same run in a baseline
+    String getKey() {
+        return cores + "," + clients + "," + config;
+    }
+
+    public String toString() {
+        return String.format(Locale.ROOT, "%d,%d,%s,%d,%d,%d,%d,%.1f,%s,%s,%s,%d,%d,%.1f",
+                cores, clients, config, delay, requests, completed, lost, throughput, formatLatency(p50), formatLatency(p99), formatLatency(p999), threads, fds, heapMb);
+    }
+
+    // Helper method to write a latency into the report, left blank if there were not enough samples to measure it
+    private static String formatLatency(double latency) {
+        return Double.isNaN(latency) ? "" : String.format(Locale.ROOT, "%.2f", latency);
+    }
+
+    // Helper method to read a latency back from the report
+    private static double parseLatency(String field) {
+        return field.isEmpty() ? Double.NaN : Double.parseDouble(field);
+    }
+
+    // Method to read a line of a report back, returns null for the header line
+    static BenchmarkResult parse(String line) {
+        if (line.startsWith("cores,")) {
+            return null;
+        }
+        String[] fields = line.split(",", -1);
+        BenchmarkResult result = new BenchmarkResult();
+        result.cores = Integer.parseInt(fields[0]);
+        result.clients = Integer.parseInt(fields[1]);
+        result.config = fields[2];
+        result.delay = Long.parseLong(fields[3]);
+        result.requests = Integer.parseInt(fields[4]);
+        result.completed = Integer.parseInt(fields[5]);
+        result.lost = Integer.parseInt(fields[6]);
+        result.throughput = Double.parseDouble(fields[7]);
+        result.p50 = parseLatency(fields[8]);
+        result.p99 = parseLatency(fields[9]);
+        result.p999 = parseLatency(fields[10]);
+        result.threads = Long.parseLong(fields[11]);
+        result.fds = Long.parseLong(fields[12]);
+        result.heapMb = Double.parseDouble(fields[13]);
+        return result;
+    }
+}
+
+// BenchmarkReceiver class to receive every reply of a run on one UDP socket, and hand it to the request with its request ID
+class BenchmarkReceiver extends Thread {
+    // Define UDP packet size, large enough for a batch of replies
+    private static final int DEFAULT_PACKET_SIZE = 8192;
+    private final DatagramSocket inputSock;
+    // Requests waiting for their reply, by request ID
+    final ConcurrentHashMap<String, CompletableFuture<Long>> waiting = new ConcurrentHashMap<>();
+
+    BenchmarkReceiver(int port) throws SocketException {
+        super("BenchmarkReceiver");
+        inputSock = new DatagramSocket(port, InetAddress.getLoopbackAddress());
+        setDaemon(true);
+    }
+
+    // Method to stop receiving
+    void close() {
+        inputSock.close();
+    }
+
+    public void run() {
+        byte[] buf = new byte[DEFAULT_PACKET_SIZE];
+        while (!inputSock.isClosed()) {
+            DatagramPacket inputPacket = new DatagramPacket(buf, buf.length);
+            try {
+                inputSock.receive(inputPacket);
+            } catch (IOException ioe) {
+                // The socket has been closed by close()
+                continue;
+            }
+            long receivedTime = System.nanoTime();
+            for (String text : ReplyBatch.split(inputPacket.getData(), inputPacket.getLength())) {
+                // The first line is the request ID, followed by the mode epoch
+                CompletableFuture<Long> reply = waiting.remove(text.split("[ \n]", 2)[0]);
+                if (reply != null) {
+                    reply.complete(receivedTime);
+                }
+            }
+        }
+    }
+}
+
+public class AsyncJokeBenchmark {
+    // Define the port number of the first run, every run uses the next two port numbers so that no run waits for the sockets of the one before
+    private static final int BASE_PORT = Integer.getInteger("asyncjoke.bench.port", 9700);
+    // Define the shortened delay of the server, in milliseconds
+    private static final long DELAY = Long.getLong("asyncjoke.bench.delay", 100);
+    // Define the number of requests each simulated client sends and measures, after the ones it sends to warm up the server
+    private static final int REQUESTS = Integer.getInteger("asyncjoke.bench.requests", 20);
+    private static final int WARMUP_REQUESTS = Integer.getInteger("asyncjoke.bench.warmup", 5);
+    // Define how many latencies have to be measured beyond a percentile for it to be reported, e.g. 1000 samples for p99
+    private static final int MIN_SAMPLES_BEYOND_PERCENTILE = 10;
+    // Define how much worse than the baseline a run may be before it counts as a regression, in percent
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("asyncjoke.bench.tolerance", "10"));
+    // Define how long to wait for a reply before it counts as lost, in milliseconds
+    private static final long REPLY_TIMEOUT = DELAY + 10000;
+    // Define how often the stats of the server are polled while the clients are running, in milliseconds
+    private static final long STATS_INTERVAL = 200;
+    private static int NEXT_PORT = BASE_PORT;
+
+    // Method to read a comma-separated list of numbers from a system property, each number once
+    static ArrayList<Integer> getIntList(String property, String defaultValue) {
+        ArrayList<Integer> values = new ArrayList<>();
+        for (String value : System.getProperty(property, defaultValue).split(",")) {
+            if (!values.contains(Integer.parseInt(value.trim()))) {
+                values.add(Integer.parseInt(value.trim()));
+            }
+        }
+        return values;
+    }
+
+    // Method to turn the class path of this program into absolute paths, since the server runs in another working directory
+    static String getAbsoluteClassPath() {
+        StringJoiner classPath = new StringJoiner(File.pathSeparator);
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.add(new File(entry).getAbsolutePath());
+        }
+        return classPath.toString();
+    }
+
+    // Method to read the server configurations, <name>=<server JVM options> separated by semicolons
+    static LinkedHashMap<String, String> getConfigs() {
+        LinkedHashMap<String, String> configs = new LinkedHashMap<>();
+        for (String config : System.getProperty("asyncjoke.bench.configs", "default=").split(";")) {
+            String[] fields = config.split("=", 2);
+            configs.put(fields[0].trim(), fields.length == 2 ? fields[1].trim() : "");
+        }
+        return configs;
+    }
+
+    // Method to send one line to the admin server and return the line it sends back, or null if it cannot be reached
+    static String sendAdminCommand(int adminPort, String command, int timeout) {
+        try (Socket sock = new Socket(InetAddress.getLoopbackAddress(), adminPort)) {
+            sock.setSoTimeout(timeout);
+            PrintStream toServer = new PrintStream(sock.getOutputStream());
+            toServer.println(command);
+            toServer.flush();
+            return new BufferedReader(new InputStreamReader(sock.getInputStream())).readLine();
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    // Method to read the <name>=<value> pairs of a stats line
+    static HashMap<String, Long> parseStats(String line) {
+        HashMap<String, Long> stats = new HashMap<>();
+        if (line != null && line.startsWith("stats ")) {
+            for (String pair : line.substring("stats ".length()).split("\\s+")) {
+                String[] fields = pair.split("=", 2);
+                try {
+                    stats.put(fields[0], Long.parseLong(fields[1]));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    // Not a number, not needed here
+                }
+            }
+        }
+        return stats;
+    }
+
+    // Method to pick the given percentile out of sorted latencies, by nearest rank
+    // Returns NaN if there are too few latencies, since the percentile would then be little more than the slowest one
+    static double getPercentile(long[] sortedLatencies, double percentile) {
+        if (sortedLatencies.length == 0 || sortedLatencies.length * (100 - percentile) / 100 < MIN_SAMPLES_BEYOND_PERCENTILE - 1e-9) {
+            return Double.NaN;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sortedLatencies.length);
+        return sortedLatencies[Math.max(rank - 1, 0)] / 1e6;
+    }
+
+    /*
+    Method to do one run: start the server, wait until its admin server answers "stats", run the simulated clients while polling the stats,
+    then shut the server down. Each client is a thread sending its requests one after the other, with its own username and UUID,
+    and a request ID unique within the run. Every client first sends its warm-up requests, which are not measured,
+    and the measured requests only start once all clients are done warming up, so the JIT compiling the server is not in the results.
+     */
+    static BenchmarkResult run(int cores, int clients, String configName, String configOptions) throws IOException, InterruptedException {
+        int port = NEXT_PORT;
+        NEXT_PORT += 2;
+        Path workingDir = Files.createTempDirectory("AsyncJokeBenchmark");
+        ArrayList<String> commandLine = new ArrayList<>();
+        commandLine.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        commandLine.add("-XX:ActiveProcessorCount=" + cores);
+        commandLine.add("-Dasyncjoke.tiers=bench:" + DELAY + ":" + (DELAY + 5000) + ":1");
+        if (!configOptions.isEmpty()) {
+            commandLine.addAll(Arrays.asList(configOptions.split("\\s+")));
+        }
+        commandLine.add("-cp");
+        commandLine.add(getAbsoluteClassPath());
+        commandLine.add("AsyncJokeServer");
+        commandLine.add(Integer.toString(port));
+        Process server = new ProcessBuilder(commandLine).directory(workingDir.toFile())
+                .redirectErrorStream(true).redirectOutput(workingDir.resolve("server.log").toFile()).start();
+
+        BenchmarkResult result = new BenchmarkResult();
+        result.cores = cores;
+        result.clients = clients;
+        result.config = configName;
+        result.delay = DELAY;
+        result.requests = clients * REQUESTS;
+        BenchmarkReceiver receiver = new BenchmarkReceiver(port);
+        receiver.start();
+        try {
+            // Wait for the server to come up
+            long startupDeadline = System.currentTimeMillis() + 30000;
+            while (parseStats(sendAdminCommand(port + 1, "stats", 1000)).isEmpty()) {
+                if (!server.isAlive() || System.currentTimeMillis() > startupDeadline) {
+                    throw new IOException("Server did not start, see " + workingDir.resolve("server.log"));
+                }
+                Thread.sleep(100);
+            }
+
+            ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+            AtomicInteger lostCount = new AtomicInteger();
+            ArrayList<Thread> clientThreads = new ArrayList<>();
+            CountDownLatch warmedUp = new CountDownLatch(clients);
+            CountDownLatch measuring = new CountDownLatch(1);
+            for (int i = 0; i < clients; i++) {
+                String username = "bench" + i;
+                String uuid = UUID.randomUUID().toString();
+                clientThreads.add(new Thread(() -> {
+                    for (int j = 0; j < WARMUP_REQUESTS + REQUESTS; j++) {
+                        if (j == WARMUP_REQUESTS) {
+                            warmedUp.countDown();
+                            try {
+                                measuring.await();
+                            } catch (InterruptedException ie) {
+                                return;
+                            }
+                        }
+                        boolean isMeasured = j >= WARMUP_REQUESTS;
+                        String requestId = username + "-" + j;
+                        CompletableFuture<Long> reply = new CompletableFuture<>();
+                        receiver.waiting.put(requestId, reply);
+                        long sentTime = System.nanoTime();
+                        try (Socket sock = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                            PrintStream toServer = new PrintStream(sock.getOutputStream());
+                            toServer.println(username);
+                            toServer.println(uuid);
+                            toServer.println(requestId);
+                            toServer.flush();
+                        } catch (IOException ioe) {
+                            receiver.waiting.remove(requestId);
+                            if (isMeasured) {
+                                lostCount.incrementAndGet();
+                            }
+                            continue;
+                        }
+                        try {
+                            long latency = reply.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS) - sentTime;
+                            if (isMeasured) {
+                                latencies.add(latency);
+                            }
+                        } catch (TimeoutException | ExecutionException | InterruptedException e) {
+                            receiver.waiting.remove(requestId);
+                            if (isMeasured) {
+                                lostCount.incrementAndGet();
+                            }
+                        }
+                    }
+                    // Without measured requests the latch has not been counted down yet, otherwise it is open already
+                    if (REQUESTS == 0) {
+                        warmedUp.countDown();
+                    }
+                }, "BenchmarkClient-" + i));
+            }
+
+            for (Thread clientThread : clientThreads) {
+                clientThread.start();
+            }
+            warmedUp.await();
+            long startTime = System.nanoTime();
+            measuring.countDown();
+            // Keep the highest resource use seen while the clients are running
+            for (Thread clientThread : clientThreads) {
+                while (clientThread.isAlive()) {
+                    HashMap<String, Long> stats = parseStats(sendAdminCommand(port + 1, "stats", 1000));
+                    result.threads = Math.max(result.threads, stats.getOrDefault("peakThreads", 0L));
+                    result.fds = Math.max(result.fds, stats.getOrDefault("fds", 0L));
+                    result.heapMb = Math.max(result.heapMb, stats.getOrDefault("heapUsed", 0L) / 1048576.0);
+                    clientThread.join(STATS_INTERVAL);
+                }
+            }
+            long elapsedTime = System.nanoTime() - startTime;
+
+            long[] sortedLatencies = new long[latencies.size()];
+            int i = 0;
+            for (long latency : latencies) {
+                sortedLatencies[i++] = latency;
+            }
+            Arrays.sort(sortedLatencies);
+            result.completed = sortedLatencies.length;
+            result.lost = lostCount.get();
+            result.throughput = result.completed / (elapsedTime / 1e9);
+            result.p50 = getPercentile(sortedLatencies, 50);
+            result.p99 = getPercentile(sortedLatencies, 99);
+            result.p999 = getPercentile(sortedLatencies, 99.9);
+        } finally {
+            receiver.close();
+            sendAdminCommand(port + 1, "shutdown fast", 30000);
+            if (!server.waitFor(30, TimeUnit.SECONDS)) {
+                server.destroyForcibly();
+            }
+        }
+        // The working directory is only kept when the run has failed, to look at the server log
+        deleteDirectory(workingDir);
+        return result;
+    }
+
+    // Helper method to delete a working directory and the files the server has left in it
+    private static void deleteDirectory(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /*
+    Method to compare a report with a baseline, run by run, and print one line per run that is in both.
+    Returns the number of regressions, i.e. runs whose throughput dropped or whose p99 latency grew by more than the tolerance.
+     */
+    static int compare(List<BenchmarkResult> results, Path baselineFile) throws IOException {
+        HashMap<String, BenchmarkResult> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(baselineFile, StandardCharsets.UTF_8)) {
+            BenchmarkResult result = BenchmarkResult.parse(line);
+            if (result != null) {
+                baseline.put(result.getKey(), result);
+            }
+        }
+        int regressionCount = 0;
+        System.out.println("Compared with baseline " + baselineFile + " (tolerance " + TOLERANCE + "%):");
+        for (BenchmarkResult result : results) {
+            BenchmarkResult before = baseline.get(result.getKey());
+            if (before == null) {
+                System.out.println(result.getKey() + ": not in baseline");
+                continue;
+            }
+            double throughputChange = getChange(before.throughput, result.throughput);
+            // p99 is only compared when both runs had enough samples to measure it
+            boolean isP99Measured = !Double.isNaN(before.p99) && !Double.isNaN(result.p99);
+            double p99Change = isP99Measured ? getChange(before.p99, result.p99) : Double.NaN;
+            boolean isRegression = throughputChange < -TOLERANCE || (isP99Measured && p99Change > TOLERANCE) || result.lost > before.lost;
+            if (isRegression) {
+                regressionCount++;
+            }
+            System.out.println(String.format(Locale.ROOT, "%s: throughput %+.1f%%, p99 %s, threads %+d, fds %+d, heap %+.1fMB, lost %+d%s",
+                    result.getKey(), throughputChange, isP99Measured ? String.format(Locale.ROOT, "%+.1f%%", p99Change) : "n/a", result.threads - before.threads, result.fds - before.fds,
+                    result.heapMb - before.heapMb, result.lost - before.lost, isRegression ? "  REGRESSION" : ""));
+        }
+        return regressionCount;
+    }
+
+    // Helper method to compute the change from a baseline value, in percent
+    private static double getChange(double before, double after) {
+        return (before == 0) ? 0 : (after - before) / before * 100;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 2) {
+            System.out.println("Error! At most a report file and a baseline file are allowed!");
+            System.exit(1);
+        }
+        Path reportFile = Paths.get(args.length >= 1 ? args[0] : "AsyncJokeBenchmark.csv");
+
+        ArrayList<BenchmarkResult> results = new ArrayList<>();
+        try (PrintStream report = new PrintStream(Files.newOutputStream(reportFile), true, "UTF-8")) {
+            report.println(BenchmarkResult.HEADER);
+            System.out.println(BenchmarkResult.HEADER);
+            for (Map.Entry<String, String> config : getConfigs().entrySet()) {
+                for (int cores : getIntList("asyncjoke.bench.cores", "1," + Runtime.getRuntime().availableProcessors())) {
+                    for (int clients : getIntList("asyncjoke.bench.clients", "1,10,50")) {
+                        BenchmarkResult result = run(cores, clients, config.getKey(), config.getValue());
+                        results.add(result);
+                        report.println(result);
+                        System.out.println(result);
+                    }
+                }
+            }
+        }
+        System.out.println("Report written to " + reportFile + ".");
+
+        if (args.length == 2) {
+            int regressionCount = compare(results, Paths.get(args[1]));
+            System.out.println(regressionCount + " regression(s) found.");
+            if (regressionCount > 0) {
+                System.exit(1);
+            }
+        }
+    }
+}
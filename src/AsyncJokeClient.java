@@ -19,18 +19,33 @@ to connect to the server using multiple customized server port numbers
 a. AsyncJokeServer.java
 b. AsyncJokeClient.java
 c. AsyncJokeAdminClient.java
-d. AsyncJokeLog.txt
-e. ChecklistAsyncJoke.html
+d. ReplyBatch.java
+e. AsyncJokeLog.txt
+f. ChecklistAsyncJoke.html
 
 5. Notes:
 a. This AsyncJokeClient can connect to multiple servers at the same time. Servers are differentiated by different port numbers.
 In this current implementation, the address of the server is hard coded, but a more flexible implementation is possible.
 b. This AsyncJokeClient is capable to send request and receive jokes/proverbs from a AsyncJokeServer.
 c. The AsyncJokeClient will have two lists storing servers' port numbers and their names. User can choose which server to send by typing their names into the console.
-d. The AsyncJokeClient will use TCP to send request to a server and immediately spawn an UDP server monitoring the same port after the request is send.
+d. The AsyncJokeClient will use TCP to send request to a server and spawn an UDP server monitoring the same port right before the request is sent.
 The use of the same port number for server and client is to simplify the logic in determine from which server the packet is received.
 f. While the UDP server is waiting, the main thread will continue to provide the user with a basic number adding function to play with.
 Response from server will only be displayed after current number adding function has ended.
+g. Every request carries a request ID, which the server sends back in the first line of its reply, followed by the epoch of the server mode the request was served in. The UDP server of each port stays up
+and hands every reply to the request with that ID, so several requests to the same server can be waiting at the same time.
+h. With several servers, run
+> java -Dasyncjoke.hedge=true [-Dasyncjoke.hedgePercentile=95] [-Dasyncjoke.hedgeDelay=45000] AsyncJokeClient <port1> <port2> ...
+to hedge requests: if a server has not replied within the given percentile of the recently observed latency
+(or within hedgeDelay milliseconds until enough replies have been seen), the same request, with the same request ID, is also sent to another server.
+The first reply is displayed and the other one is ignored.
+i. Replies may also arrive packed together in one packet as "#batch <count>", followed by the length and the content of each reply.
+j. Typing "any" instead of a letter sends the request to the server with the lowest average reply latency among the servers that are up,
+and on to the next one if it cannot be connected to. A server that cannot be connected to (within -Dasyncjoke.connectTimeout milliseconds, 2000 by default)
+or that does not reply within -Dasyncjoke.requestTimeout milliseconds (90000 by default) is marked dead, and is only tried again after a backoff
+that starts at 1 second and doubles with every failure in a row up to 60 seconds. Hedged requests also go to the fastest other server that is up.
+A request that has timed out is given up, and the UDP server of a port is closed once no request to it is waiting any more.
+Typing "status" shows how each server has been doing.
 
 ----------------------------------------------------------*/
 
@@ -39,35 +54,26 @@ Response from server will only be displayed after current number adding function
 import java.io.*;
 // Get the Java networking libraries
 import java.net.*;
-// Get the UUID API in Java utility libraries
+// Get the Java utility libraries
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
-// UDP server class to wait for server's response
+// UDP server class to wait for server's responses, one UDP server keeps running for each server port as long as a request to it is waiting
 class UDPServer extends Thread {
-    // Define default UDP packet size
-    private final int DEFAULT_PACKET_SIZE = 255;
+    // Define default UDP packet size, large enough for a batch of replies
+    private final int DEFAULT_PACKET_SIZE = 8192;
     DatagramSocket inputSock;
-    // Initialize an UDP packet object
-    DatagramPacket inputPacket = new DatagramPacket(new byte[DEFAULT_PACKET_SIZE], DEFAULT_PACKET_SIZE);
     int port;
-    // Define packet receive indicator
-    boolean isPacketReceived = false;
 
     // Default constructor, save the port number of this current UDP socket
     UDPServer(DatagramSocket ds) {
         inputSock = ds;
         port = ds.getLocalPort();
-    }
-
-    // Getter for packet receive indicator
-    public boolean isPacketReceived() {
-        return isPacketReceived;
-    }
-
-    // Getter for UDP packet
-    public DatagramPacket getInputPacket() {
-        return inputPacket;
+        // Do not keep the client running just for this thread
+        setDaemon(true);
     }
 
     // Getter for this socket's port number
@@ -76,18 +82,146 @@ class UDPServer extends Thread {
     }
 
     public void run() {
-        try {
-            // Blocking wait for UDP packet send via this socket
-            inputSock.receive(inputPacket);
-            // Change the packet receive indicator
-            isPacketReceived = true;
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
+        byte[] buf = new byte[DEFAULT_PACKET_SIZE];
+        while (!inputSock.isClosed()) {
+            // Initialize an UDP packet object
+            DatagramPacket inputPacket = new DatagramPacket(buf, buf.length);
+            try {
+                // Blocking wait for UDP packet send via this socket
+                inputSock.receive(inputPacket);
+            } catch (IOException ioe) {
+                if (!inputSock.isClosed()) {
+                    ioe.printStackTrace();
+                }
+                continue;
+            }
+            // Hand the content of the packet over to the request(s) it belongs to
+            for (String text : ReplyBatch.split(inputPacket.getData(), inputPacket.getLength())) {
+                AsyncJokeClient.receiveResponse(port, text);
+            }
         }
+    }
+
+    // Method to stop waiting, gets the blocking receive() out of its waiting status
+    public void close() {
         inputSock.close();
     }
 }
 
+// PendingRequest class to keep track of one logical request, which may have been sent to more than one server
+class PendingRequest {
+    final String requestId;
+    final String username;
+    final String uuid;
+    // Index of the server the request was sent to first, and of the server it was hedged to (-1 if not hedged)
+    final int listIndex;
+    volatile int hedgeListIndex = -1;
+    // Time the request was sent to the first server and to the hedge server
+    final long sentTime;
+    volatile long hedgeSentTime;
+    // Port of the server whose reply arrived first, the epoch of the server mode it was served in (-1 if the server did not send one), and the reply itself
+    int respondingPort;
+    long modeEpoch = -1;
+    String result;
+    // Indicator that the request has been replied or given up, after which it is not hedged any more
+    boolean isDone = false;
+    // Indicator that no reply has arrived before the request timeout
+    boolean isTimedOut = false;
+
+    PendingRequest(String id, String name, String uid, int index) {
+        requestId = id;
+        username = name;
+        uuid = uid;
+        listIndex = index;
+        sentTime = System.currentTimeMillis();
+    }
+}
+
+// LatencyTracker class to keep the most recent reply latencies and compute percentiles over them
+class LatencyTracker {
+    // Define how many latencies to keep, and how many are needed before percentiles are trusted
+    private static final int MAX_SAMPLES = 100;
+    private static final int MIN_SAMPLES = 5;
+    private final long[] samples = new long[MAX_SAMPLES];
+    private int count = 0;
+    private int next = 0;
+
+    // Method to record a new latency, replacing the oldest one once the buffer is full
+    public synchronized void add(long latency) {
+        samples[next] = latency;
+        next = (next + 1) % MAX_SAMPLES;
+        count = Math.min(count + 1, MAX_SAMPLES);
+    }
+
+    // Method to compute a percentile of the recorded latencies, or return the default value if there are too few of them
+    public synchronized long getPercentile(double percentile, long defaultValue) {
+        if (count < MIN_SAMPLES) {
+            return defaultValue;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+}
+
+/*
+ServerHealth class to keep track of how one server has been doing, so that requests can be routed to the fastest server that is up.
+The latency is an exponentially weighted moving average of the reply latencies. A server that cannot be connected to, or that lets a request time out,
+is marked dead, and is not picked again until a backoff has passed, which doubles with every failure in a row up to MAX_BACKOFF.
+Once the backoff has passed, the next request to the server is a probe: its success brings the server back, its failure doubles the backoff.
+ */
+class ServerHealth {
+    // Define the weight of the newest latency in the moving average
+    private static final double LATENCY_WEIGHT = 0.3;
+    // Define the backoff after the first failure, and the longest backoff, in milliseconds
+    private static final long BASE_BACKOFF = Long.getLong("asyncjoke.baseBackoff", 1000);
+    private static final long MAX_BACKOFF = Long.getLong("asyncjoke.maxBackoff", 60000);
+    final int port;
+    // Number of requests to this server still waiting for a reply, the UDP server of the port is closed when it drops to 0
+    final AtomicInteger outstandingCount = new AtomicInteger();
+    // Moving average of the reply latency in milliseconds, -1 until the first reply
+    private double latency = -1;
+    private int failureCount = 0;
+    // Time until which the server is not picked, in System.currentTimeMillis() terms
+    private long deadUntil = 0;
+
+    ServerHealth(int p) {
+        port = p;
+    }
+
+    // Method to record a reply and its latency, a server that replies is up
+    public synchronized void recordSuccess(long replyLatency) {
+        latency = (latency < 0) ? replyLatency : LATENCY_WEIGHT * replyLatency + (1 - LATENCY_WEIGHT) * latency;
+        failureCount = 0;
+        deadUntil = 0;
+    }
+
+    // Method to record a failed connection or a timed out request, returns the backoff before the server is tried again
+    public synchronized long recordFailure() {
+        failureCount++;
+        long backoff = Math.min(BASE_BACKOFF << Math.min(failureCount - 1, 30), MAX_BACKOFF);
+        deadUntil = System.currentTimeMillis() + backoff;
+        return backoff;
+    }
+
+    // Getter method of the healthy indicator, a dead server is healthy again for a probe once its backoff has passed
+    public synchronized boolean isHealthy() {
+        return System.currentTimeMillis() >= deadUntil;
+    }
+
+    // Getter method of the moving average of the reply latency, a server without any reply yet counts as the fastest so that it gets tried
+    public synchronized double getLatency() {
+        return Math.max(latency, 0);
+    }
+
+    public synchronized String toString() {
+        String state = isHealthy() ? (failureCount == 0 ? "up" : "probing") : "dead for " + (deadUntil - System.currentTimeMillis()) / 1000 + " more second(s)";
+        return state + ", average latency " + (latency < 0 ? "unknown" : Math.round(latency) + " ms") + ", " + failureCount + " failure(s) in a row, "
+                + outstandingCount.get() + " request(s) waiting";
+    }
+}
+
 public class AsyncJokeClient {
     // Define default server port number
     private static final int DEFAULT_SERVER_PORT = 7687;
@@ -97,19 +231,46 @@ public class AsyncJokeClient {
     private static ArrayList<String> SERVER_NAME_TABLE = new ArrayList<>();
     // Initialize a list to hold server port numbers
     private static ArrayList<Integer> SERVER_PORT_TABLE = new ArrayList<>();
+    // Initialize a list to hold the health of each server
+    private static ArrayList<ServerHealth> SERVER_HEALTH_TABLE = new ArrayList<>();
     // Initialize an array to as alphabet, to be used for server names
     private static char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
-    // Define a byte buffer to hold the content of UDP packet
-    private static byte[] buf;
-    // Initialize a list to hold running UDP servers
-    private static ArrayList<UDPServer> UDP_SERVER_LIST = new ArrayList<>();
+    // Define the name of the target that picks the fastest healthy server
+    private static final String ANY_SERVER = "ANY";
+    // Initialize a map to hold running UDP servers by port number
+    private static ConcurrentHashMap<Integer, UDPServer> UDP_SERVERS = new ConcurrentHashMap<>();
+    // Initialize a map to hold the requests still waiting for a reply by request ID
+    private static ConcurrentHashMap<String, PendingRequest> PENDING_REQUESTS = new ConcurrentHashMap<>();
+    // Initialize a queue to hold the requests that have been replied, until they are displayed
+    private static ConcurrentLinkedQueue<PendingRequest> COMPLETED_REQUESTS = new ConcurrentLinkedQueue<>();
+    // Counter to generate request IDs
+    private static AtomicLong NEXT_REQUEST_ID = new AtomicLong(1);
+    // Recent reply latencies, used to decide when to hedge
+    private static LatencyTracker LATENCY_TRACKER = new LatencyTracker();
+    // Define hedging settings: whether to hedge, at which latency percentile, and the delay to use until enough replies have been seen
+    private static final boolean IS_HEDGING = Boolean.getBoolean("asyncjoke.hedge");
+    private static final double HEDGE_PERCENTILE = Double.parseDouble(System.getProperty("asyncjoke.hedgePercentile", "95"));
+    private static final long DEFAULT_HEDGE_DELAY = Long.getLong("asyncjoke.hedgeDelay", 45000);
+    // Define how long to wait for connecting to a server, and for a reply before the request is given up, in milliseconds
+    private static final int CONNECT_TIMEOUT = Integer.getInteger("asyncjoke.connectTimeout", 2000);
+    private static final long REQUEST_TIMEOUT = Long.getLong("asyncjoke.requestTimeout", 90000);
+    // Define the longest username the servers accept
+    private static final int MAX_USERNAME_LENGTH = 64;
+    // Timer thread that sends hedged requests and gives up requests that have timed out
+    private static ScheduledExecutorService REQUEST_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "RequestTimer");
+        t.setDaemon(true);
+        return t;
+    });
 
-    static void sendRemoteResponse(String username, String uuid, String serverName, int serverPort) {
+    // Method to send a request to a server, returns false if the server cannot be connected to
+    static boolean sendRemoteResponse(String username, String uuid, String requestId, String serverName, int serverPort) {
         Socket sock;
         PrintStream toServer;
         try {
-            // Open socket using given server address and port number
-            sock = new Socket(serverName, serverPort);
+            // Open socket using given server address and port number, without waiting forever for a server that is gone
+            sock = new Socket();
+            sock.connect(new InetSocketAddress(serverName, serverPort), CONNECT_TIMEOUT);
             // Initialize the output stream of the socket as PrintStream
             toServer = new PrintStream(sock.getOutputStream());
             // Send user input server name to server for query.
@@ -117,15 +278,200 @@ public class AsyncJokeClient {
             toServer.flush();
             toServer.println(uuid);
             toServer.flush();
+            toServer.println(requestId);
+            toServer.flush();
             // Close the socket
             sock.close();
+            return true;
             // In case the socket cannot be created for some reason
         } catch (IOException ioe) {
-            System.out.println("Socket error.");
-            ioe.printStackTrace();
+            System.out.println("Socket error: cannot send request to port " + serverPort + ". " + ioe.getMessage());
+            return false;
+        }
+    }
+
+    // Method to start the UDP server of a server port, unless it is running already
+    static synchronized void startUDPServer(int port) {
+        if (UDP_SERVERS.containsKey(port)) {
+            return;
+        }
+        try {
+            // Create an UDP socket with the same port number as server
+            DatagramSocket datagramSock = new DatagramSocket(port);
+            // Create an UDP server with that UDP socket
+            UDPServer udpServer = new UDPServer(datagramSock);
+            // Add running UDP server into UDP server map, and execute the UDP server thread
+            UDP_SERVERS.put(port, udpServer);
+            udpServer.start();
+        } catch (SocketException se) {
+            // Error handlings
+            System.out.println("Fatal Error: cannot create UDP server!");
+            se.printStackTrace();
+            System.exit(1);
         }
     }
 
+    // Method to close the UDP server of a port once no request to it is waiting any more, so that no thread is left behind
+    static synchronized void closeUDPServerIfIdle(int listIndex) {
+        int port = SERVER_PORT_TABLE.get(listIndex);
+        if (SERVER_HEALTH_TABLE.get(listIndex).outstandingCount.get() == 0 && UDP_SERVERS.containsKey(port)) {
+            UDP_SERVERS.remove(port).close();
+        }
+    }
+
+    // Method to pick the healthy server with the lowest average latency, except the given one, returns -1 if no server is healthy
+    static int pickFastestServer(int excludedListIndex) {
+        int fastest = -1;
+        for (int i = 0; i < SERVER_HEALTH_TABLE.size(); i++) {
+            ServerHealth health = SERVER_HEALTH_TABLE.get(i);
+            if (i != excludedListIndex && health.isHealthy() && (fastest == -1 || health.getLatency() < SERVER_HEALTH_TABLE.get(fastest).getLatency())) {
+                fastest = i;
+            }
+        }
+        return fastest;
+    }
+
+    // Method to send a request to one server, which must already count the request as waiting so that its UDP server stays up
+    // Returns false and marks the server dead if it cannot be connected to
+    static boolean sendToServer(PendingRequest request, int listIndex) {
+        // Start listening before sending, so that the reply cannot arrive before the UDP server is up
+        startUDPServer(SERVER_PORT_TABLE.get(listIndex));
+        if (sendRemoteResponse(request.username, request.uuid, request.requestId, DEFAULT_SERVER_ADDR, SERVER_PORT_TABLE.get(listIndex))) {
+            return true;
+        }
+        long backoff = SERVER_HEALTH_TABLE.get(listIndex).recordFailure();
+        System.out.println("Server " + SERVER_NAME_TABLE.get(listIndex) + " marked dead, it will be tried again in " + backoff / 1000.0 + " second(s).");
+        return false;
+    }
+
+    /*
+    Method to send a new request, and to schedule its hedge if hedging is on and its timeout.
+    A request to a given server goes to that server even if it is marked dead, as a probe. A request to any server goes to the fastest healthy server,
+    and to the next fastest one if it cannot be connected to. Returns false if the request could not be sent to any server.
+     */
+    static boolean sendRequest(String username, String uuid, int listIndex) {
+        boolean isAnyServer = (listIndex == -1);
+        if (isAnyServer) {
+            listIndex = pickFastestServer(-1);
+        }
+        while (listIndex != -1) {
+            PendingRequest request = new PendingRequest(Long.toString(NEXT_REQUEST_ID.getAndIncrement()), username, uuid, listIndex);
+            PENDING_REQUESTS.put(request.requestId, request);
+            SERVER_HEALTH_TABLE.get(listIndex).outstandingCount.incrementAndGet();
+            if (sendToServer(request, listIndex)) {
+                if (IS_HEDGING && SERVER_PORT_TABLE.size() > 1) {
+                    long hedgeDelay = LATENCY_TRACKER.getPercentile(HEDGE_PERCENTILE, DEFAULT_HEDGE_DELAY);
+                    REQUEST_TIMER.schedule(() -> hedge(request), hedgeDelay, TimeUnit.MILLISECONDS);
+                }
+                REQUEST_TIMER.schedule(() -> timeOut(request), REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (isAnyServer) {
+                    System.out.println("Request sent to server " + SERVER_NAME_TABLE.get(listIndex) + ".");
+                }
+                return true;
+            }
+            PENDING_REQUESTS.remove(request.requestId);
+            SERVER_HEALTH_TABLE.get(listIndex).outstandingCount.decrementAndGet();
+            closeUDPServerIfIdle(listIndex);
+            listIndex = isAnyServer ? pickFastestServer(-1) : -1;
+        }
+        if (isAnyServer) {
+            System.out.println("No server is available right now, please try again later.");
+        }
+        return false;
+    }
+
+    // Method to send a request that is still waiting for its reply to the fastest other healthy server, with the same request ID
+    static void hedge(PendingRequest request) {
+        int hedgeListIndex = pickFastestServer(request.listIndex);
+        if (hedgeListIndex == -1) {
+            return;
+        }
+        synchronized (request) {
+            if (request.isDone) {
+                return;
+            }
+            request.hedgeSentTime = System.currentTimeMillis();
+            request.hedgeListIndex = hedgeListIndex;
+            SERVER_HEALTH_TABLE.get(hedgeListIndex).outstandingCount.incrementAndGet();
+        }
+        if (!sendToServer(request, hedgeListIndex)) {
+            // Stop waiting on the hedge server, unless finish() has already done so
+            boolean isWaiting;
+            synchronized (request) {
+                isWaiting = !request.isDone;
+                if (isWaiting) {
+                    request.hedgeListIndex = -1;
+                }
+            }
+            if (isWaiting) {
+                SERVER_HEALTH_TABLE.get(hedgeListIndex).outstandingCount.decrementAndGet();
+            }
+            closeUDPServerIfIdle(hedgeListIndex);
+        }
+    }
+
+    // Method to give up a request that is still waiting for its reply, the servers it was sent to count as failed
+    static void timeOut(PendingRequest request) {
+        if (PENDING_REQUESTS.remove(request.requestId) == null) {
+            return;
+        }
+        request.isTimedOut = true;
+        SERVER_HEALTH_TABLE.get(request.listIndex).recordFailure();
+        int hedgeListIndex = request.hedgeListIndex;
+        if (hedgeListIndex != -1) {
+            SERVER_HEALTH_TABLE.get(hedgeListIndex).recordFailure();
+        }
+        finish(request);
+    }
+
+    // Method to stop waiting for a request that has been replied or given up, and to close the UDP servers nobody waits on any more
+    static void finish(PendingRequest request) {
+        int hedgeListIndex;
+        synchronized (request) {
+            request.isDone = true;
+            hedgeListIndex = request.hedgeListIndex;
+        }
+        SERVER_HEALTH_TABLE.get(request.listIndex).outstandingCount.decrementAndGet();
+        closeUDPServerIfIdle(request.listIndex);
+        if (hedgeListIndex != -1) {
+            SERVER_HEALTH_TABLE.get(hedgeListIndex).outstandingCount.decrementAndGet();
+            closeUDPServerIfIdle(hedgeListIndex);
+        }
+        COMPLETED_REQUESTS.add(request);
+    }
+
+    // Method called by the UDP servers for every packet, the first reply of a request wins and any later one is ignored
+    static void receiveResponse(int port, String text) {
+        int lineBreak = text.indexOf('\n');
+        if (lineBreak == -1) {
+            // Reply without request ID, nothing to match it with
+            return;
+        }
+        // The first line is the request ID, followed by the epoch of the server mode if the server sends one
+        String[] header = text.substring(0, lineBreak).split(" ");
+        PendingRequest request = PENDING_REQUESTS.remove(header[0]);
+        if (request == null) {
+            // The other server has replied first
+            return;
+        }
+        request.respondingPort = port;
+        if (header.length > 1) {
+            try {
+                request.modeEpoch = Long.parseLong(header[1]);
+            } catch (NumberFormatException nfe) {
+                // Not an epoch, just leave it unknown
+            }
+        }
+        request.result = text.substring(lineBreak + 1);
+        // Record how long the server that replied took
+        int hedgeListIndex = request.hedgeListIndex;
+        boolean isFromHedge = hedgeListIndex != -1 && SERVER_PORT_TABLE.get(hedgeListIndex) == port;
+        long latency = System.currentTimeMillis() - (isFromHedge ? request.hedgeSentTime : request.sentTime);
+        LATENCY_TRACKER.add(latency);
+        SERVER_HEALTH_TABLE.get(isFromHedge ? hedgeListIndex : request.listIndex).recordSuccess(latency);
+        finish(request);
+    }
+
     public static void main(String args[]) {
         // If user has defined port number(s) in the command line argument(s)
         if (args.length > 0) {
@@ -141,6 +487,7 @@ public class AsyncJokeClient {
                     // If everything goes well, save as new server into the lists
                     SERVER_PORT_TABLE.add(port);
                     SERVER_NAME_TABLE.add(String.valueOf(ALPHABET[i]));
+                    SERVER_HEALTH_TABLE.add(new ServerHealth(port));
                 }
             } catch (NumberFormatException nfe) {
                 // If something cannot be parsed as integers
@@ -151,6 +498,7 @@ public class AsyncJokeClient {
             // If user didn't defined port number(s) in the command line argument(s), then use default value
             SERVER_PORT_TABLE.add(DEFAULT_SERVER_PORT);
             SERVER_NAME_TABLE.add(String.valueOf(ALPHABET[0]));
+            SERVER_HEALTH_TABLE.add(new ServerHealth(DEFAULT_SERVER_PORT));
         }
 
         // Generate a random UUID for client
@@ -177,20 +525,22 @@ public class AsyncJokeClient {
                 // Get username from user input
                 username = in.readLine();
 
-                // Empty input is not a valid username
+                // Empty input is not a valid username, and the servers refuse usernames that are too long
                 if (username.isEmpty()) {
                     System.out.println("Username cannot be empty.");
                     System.out.flush();
+                } else if (username.length() > MAX_USERNAME_LENGTH) {
+                    System.out.println("Username cannot be longer than " + MAX_USERNAME_LENGTH + " characters.");
+                    System.out.flush();
                 }
-            } while (username.isEmpty());
+            } while (username.isEmpty() || username.length() > MAX_USERNAME_LENGTH);
 
             // Main loop, user can either enter a server's name to request for a new joke/proverb, or input several numbers for addition
             while (true) {
-                System.out.print("Enter one of the following letter [ " + allPortName + "] to get a joke or proverb, or numbers for sum: ");
+                System.out.print("Enter one of the following letter [ " + allPortName + "] or any (the fastest server that is up) to get a joke or proverb, status to see how the servers are doing, or numbers for sum: ");
                 // Flush output buffer to clean it
                 System.out.flush();
 
-                UDPServer udpServer;
                 // Read user's input and separate by white-spaces
                 command = in.readLine();
                 String[] userInputStrings = command.split("\\s+");
@@ -199,25 +549,22 @@ public class AsyncJokeClient {
                     // Find the index of the server in both tables
                     int listIndex = SERVER_NAME_TABLE.indexOf(command.toUpperCase());
                     // Send UUID and username to server, requesting new joke/proverb
-                    sendRemoteResponse(username, uuid.toString(), DEFAULT_SERVER_ADDR, SERVER_PORT_TABLE.get(listIndex));
-                    try {
-                        // Create an UDP socket with the same port number as server
-                        DatagramSocket datagramSock = new DatagramSocket(SERVER_PORT_TABLE.get(listIndex));
-                        // Create an UDP server with that UDP socket
-                        udpServer = new UDPServer(datagramSock);
-                        // Execute the UDP server thread
-                        udpServer.start();
-                        // Add running UDP server into UDP server list
-                        UDP_SERVER_LIST.add(udpServer);
-                    } catch (SocketException se) {
-                        // Error handlings
-                        System.out.println("Fatal Error: cannot create UDP server!");
-                        se.printStackTrace();
-                        System.exit(1);
-                    }
+                    sendRequest(username, uuid.toString(), listIndex);
                     // Finished, re-start from the head of the while loop
                     continue;
                 }
+                // If input is "any", send the request to the fastest server that is up
+                if (userInputStrings.length == 1 && command.equalsIgnoreCase(ANY_SERVER)) {
+                    sendRequest(username, uuid.toString(), -1);
+                    continue;
+                }
+                // If input is "status", print how each server has been doing
+                if (userInputStrings.length == 1 && command.equalsIgnoreCase("status")) {
+                    for (int i = 0; i < SERVER_NAME_TABLE.size(); i++) {
+                        System.out.println("Server " + SERVER_NAME_TABLE.get(i) + " at " + SERVER_PORT_TABLE.get(i) + ": " + SERVER_HEALTH_TABLE.get(i));
+                    }
+                    continue;
+                }
 
                 // User didn't enter a right server name, try to perform addition over user input values
                 int sum = 0;
@@ -238,30 +585,21 @@ public class AsyncJokeClient {
                     }
                 }
 
-                // If have any running UDP servers
-                if (!UDP_SERVER_LIST.isEmpty()) {
-                    // Try to see if any of the running UDP servers has received a new packet
-                    for (int i = 0; i < UDP_SERVER_LIST.size(); i++) {
-                        udpServer = UDP_SERVER_LIST.get(i);
-                        if (udpServer.isPacketReceived()) {
-                            // If received a new packet, get the packet
-                            DatagramPacket packet = udpServer.getInputPacket();
-                            // And the server port number
-                            int remotePort = udpServer.getPort();
-                            // Get data from the packet
-                            buf = packet.getData();
-                            // Reconstruct the result string
-                            String result = new String(buf);
-
-                            // Output result string
-                            System.out.println();
-                            System.out.print("Server " + SERVER_NAME_TABLE.get(SERVER_PORT_TABLE.indexOf(remotePort)) + " responds: ");
-                            System.out.println(result);
-                            System.out.println();
-                            // The UDP server's job is done, remove it from the list
-                            UDP_SERVER_LIST.remove(i);
-                        }
+                // Output every response received in the meantime
+                PendingRequest request;
+                while ((request = COMPLETED_REQUESTS.poll()) != null) {
+                    System.out.println();
+                    if (request.isTimedOut) {
+                        System.out.println("Server " + SERVER_NAME_TABLE.get(request.listIndex) + " did not respond within " + REQUEST_TIMEOUT / 1000 + " second(s), request given up.");
+                        System.out.println();
+                        continue;
+                    }
+                    System.out.print("Server " + SERVER_NAME_TABLE.get(SERVER_PORT_TABLE.indexOf(request.respondingPort)) + (request.modeEpoch == -1 ? "" : " (mode epoch " + request.modeEpoch + ")") + " responds: ");
+                    System.out.println(request.result);
+                    if (request.hedgeListIndex != -1) {
+                        System.out.println("(Request was hedged from server " + SERVER_NAME_TABLE.get(request.listIndex) + " to server " + SERVER_NAME_TABLE.get(request.hedgeListIndex) + ".)");
                     }
+                    System.out.println();
                 }
             }
         } catch (IOException x) {
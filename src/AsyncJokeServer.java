@@ -2,7 +2,7 @@
 
 1. Mingfei Shao / 11/06/2016:
 
-2. Java version used: build 1.8.0_102-b14
+2. Java version used: build 1.8.0_102-b14 (Java 11 or later is needed for the Java Flight Recorder events)
 
 3. Precise command-line compilation examples / instructions:
 > javac AsyncJokeServer.java
@@ -20,6 +20,9 @@ b. AsyncJokeClient.java
 c. AsyncJokeAdminClient.java
 d. AsyncJokeLog.txt
 e. ChecklistAsyncJoke.html
+f. AsyncJokeCatalog.txt (optional, only needed to reload the jokes/proverbs)
+g. AsyncJokeBenchmark.java (optional, only needed to measure how the server scales)
+h. ReplyBatch.java (reads the batched replies, used by AsyncJokeClient and AsyncJokeBenchmark)
 
 5. Notes:
 a. This AsyncJokeServer can return 4 jokes and 4 proverbs in a random order to a client, and re-order them once a 4-item cycle has finished.
@@ -28,16 +31,68 @@ c. This AsyncJokeServer can run asynchronously, it will use TCP for receiving re
 d. This AsyncJokeServer can be controlled by a AsyncJokeAdminClient, which can change the server mode and shutdown the server.
 e. The default port for AsyncJokeServer and AsyncJokeAdminServer are 7687 and 7688 respectively. If user wants to specify customized port number,
 the port number will be used as the port number of AsyncJokeServer, and the port number of AsyncJokeAdminServer will be simply plusing 1.
+f. The ClientStatusTable is kept in AsyncJokeServer-<port>.snapshot and AsyncJokeServer-<port>.wal.<n> files in the working directory,
+so every user continues the current cycle after the server is restarted. Delete these files to start over with an empty table.
+g. The jokes/proverbs can be replaced while the server is running, by sending "reload [file]" from AsyncJokeAdminClient.
+The file (AsyncJokeCatalog.txt by default) holds one joke/proverb per line as <category>|<title>|<text>, where category is joke or proverb (see n.),
+and title plus text may be up to 1000 bytes long. Requests with a username longer than 64 characters get an error reply.
+Requests already being processed finish with the jokes/proverbs they started with.
+h. "shutdown [fast] [seconds]" from AsyncJokeAdminClient shuts the server down gracefully. The server stops accepting requests,
+sends the replies that are still pending within the given number of seconds (by default -Dasyncjoke.drainTimeout=<ms>,
+or the longest delay of a tier plus 5 seconds if that is not given), right away if "fast" is given, and reports how many replies were drained and how many were dropped.
+i. "jfr start [file]" and "jfr stop" from AsyncJokeAdminClient start and stop a Java Flight Recorder recording of every request stage
+(accept, parse, ClientStatusTable, delay, makeReturnString, UDP send), written to the file (AsyncJokeServer-<port>.jfr by default) when stopped.
+Open it with JDK Mission Control or "jfr print --events AsyncJoke.RequestStage <file>".
+j. Replies that come due within 2 milliseconds of each other (-Dasyncjoke.batchWindow=<ms>) are sent together, and replies to the same client address and port
+are packed into one datagram: "#batch <count>" on the first line, then for each reply its length in bytes on its own line followed by the reply itself.
+k. For very large numbers of users, run
+> java -Dasyncjoke.store=mapped [-Dasyncjoke.tableSlots=<slots>] AsyncJokeServer
+to keep the ClientStatusTable outside of the Java heap in a memory-mapped AsyncJokeServer-<port>.table file instead.
+The number of slots (default 1048576) is only used when the file is created, keep it well above the expected number of users.
+l. Clients can be served in tiers, each with its own delay, deadline and weight, for example
+> java -Dasyncjoke.tiers=standard:40000:45000:1,gold:10000:12000:4 -Dasyncjoke.clientTiers=Alice=gold AsyncJokeServer
+where the first tier is the one of every client not listed (by username or UUID). When more replies are due than can be sent at once
+(-Dasyncjoke.maxRepliesPerBatch=<n>, default 256), the clients take turns, each sending as many replies per turn as the weight of its tier,
+so a client flooding the server cannot hold back the replies of everyone else. Clients whose next reply is within 100 milliseconds
+of its deadline (-Dasyncjoke.urgentWindow=<ms>) or past it take their turn first. Replies sent after their deadline are counted per tier on shutdown.
+m. "stats" from AsyncJokeAdminClient reports the threads, open file descriptors and heap used by the server, and the numbers of users and replies,
+as <name>=<value> pairs. AsyncJokeBenchmark uses it to measure the server.
+n. The server mode is an immutable snapshot numbered by an epoch, which goes up by one with every mode change. Each request is served in the mode
+it was received in, and the epoch is sent back after the request ID in the first line of the reply, and reported by "stats" and the JFR events.
+Toggling switches to the next category, and "mode <category>" from AsyncJokeAdminClient switches to the given one ("mode" alone reports the current one).
+The categories are proverb and joke by default, other ones can be served with e.g.
+> java -Dasyncjoke.categories=proverb,joke,riddle [-Dasyncjoke.catalog=<file>] AsyncJokeServer
+in which case the jokes/proverbs of every category are loaded from the catalog file (AsyncJokeCatalog.txt by default) on startup.
+Keep the order of the categories across restarts, since the ClientStatusTable keeps the status of each category by its position.
+The memory-mapped ClientStatusTable has room for 4 categories.
 
 ----------------------------------------------------------*/
 
 // Get the Input Output libraries
 
 import java.io.*;
+// Get the Java management libraries for the stats command
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 // Get the Java networking libraries
 import java.net.*;
+// Get the Java NIO libraries for the ClientStatusTable log files
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 // Get the Java utility libraries
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.CRC32;
+// Get the Java Flight Recorder libraries for request tracing
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
 
 // AdminWorker class to handle Admin client requests, each worker class will run on a new thread
 class AdminWorker extends Thread {
@@ -50,7 +105,6 @@ class AdminWorker extends Thread {
     public void run() {
         PrintStream out;
         BufferedReader in;
-        String state;
         String command;
 
         try {
@@ -59,299 +113,2179 @@ class AdminWorker extends Thread {
             // Initialize the output stream of the socket as PrintStream
             out = new PrintStream(sock.getOutputStream());
             try {
-                // Received a toggling signal from Admin client, we don't care its actual content
+                // Received a command from Admin client, a toggling signal is "toggle" or the letter of the server
                 command = in.readLine();
 
                 /*
-                A very coarse-grained shutdown logic here.
-                Once received a shutdown command from the Admin Client, this logic will create an "internal socket" connection that connect to the AsyncJokeServer running on localhost.
-                The first pass socket connection will send a signal (empty username with empty UUID) to let the AsyncJokeServer to change its IS_RUNNING switch to false.
-                And then, to set the IS_RUNNING switch on the AdminServer side to false.
-                After that, this logic will send another shutdown signal from itself back to itself, to let the AdminServer to get out of the blocking waiting status and shut itself down
-                The second pass socket connection will also send the same signal, but this is just for the AsyncJokeServer to get out of the blocking waiting status and shut itself down.
-                It is not very fine-grained, but it works.
+                Shutdown logic. The command is "shutdown [fast] [seconds]".
+                The server stops accepting requests, waits up to the given number of seconds for the pending replies to be sent,
+                optionally sending them right away instead of waiting for their delay, and then closes everything.
+                The numbers of drained and dropped replies are sent back to the Admin client.
                  */
-                if (command.equalsIgnoreCase("shutdown")) {
-                    int internalPort = AsyncJokeServer.getServerPort();
-                    Socket internalSock = new Socket("localhost", internalPort);
-                    PrintStream toInternal = new PrintStream(internalSock.getOutputStream());
-                    toInternal.println();
-                    toInternal.flush();
-                    toInternal.println();
-                    toInternal.flush();
-                    internalSock.close();
-                    AdminServer.setIsRunningFalse();
-                    internalPort = AsyncJokeServer.getAdminPort();
-                    internalSock = new Socket("localhost", internalPort);
-                    toInternal = new PrintStream(internalSock.getOutputStream());
-                    toInternal.println("shutdown");
-                    toInternal.flush();
+                if (command.toLowerCase().startsWith("shutdown")) {
+                    boolean isFastForward = false;
+                    long drainTimeout = AsyncJokeServer.getDrainTimeout();
+                    String[] options = command.trim().split("\\s+");
+                    try {
+                        for (int i = 1; i < options.length; i++) {
+                            if (options[i].equalsIgnoreCase("fast")) {
+                                isFastForward = true;
+                            } else {
+                                drainTimeout = Long.parseLong(options[i]) * 1000;
+                            }
+                        }
+                    } catch (NumberFormatException nfe) {
+                        out.println("Usage: shutdown [fast] [seconds]");
+                        out.flush();
+                        sock.close();
+                        return;
+                    }
+                    String result = AsyncJokeServer.shutdown(drainTimeout, isFastForward);
+                    out.println(result);
+                    out.flush();
+                } else if (command.toLowerCase().startsWith("jfr")) {
+                    // Start or stop the recording of request stages
+                    String[] options = command.trim().split("\\s+");
+                    String result;
+                    if (options.length >= 2 && options[1].equalsIgnoreCase("start")) {
+                        result = RequestTracer.start(options.length >= 3 ? options[2] : "AsyncJokeServer-" + AsyncJokeServer.getServerPort() + ".jfr");
+                    } else if (options.length == 2 && options[1].equalsIgnoreCase("stop")) {
+                        result = RequestTracer.stop();
+                    } else {
+                        result = "Usage: jfr start [file] | jfr stop";
+                    }
+                    System.out.println(result);
+                    System.out.println();
+                    out.println(result);
+                    out.flush();
+                } else if (command.trim().equalsIgnoreCase("stats")) {
+                    // Report the resources used by the server, the console is left alone since tools may ask for this often
+                    out.println(AsyncJokeServer.getStats());
+                    out.flush();
+                } else if (command.toLowerCase().startsWith("reload")) {
+                    // Load a new Catalog on this AdminWorker thread, Workers keep serving from the current one until it is published
+                    String result;
+                    try {
+                        Catalog catalog = AsyncJokeServer.reloadCatalog(command.substring("reload".length()).trim());
+                        result = "Catalog version " + catalog.getVersion() + " loaded with " + catalog.describeItemCounts() + ".";
+                    } catch (IOException ioe) {
+                        result = "Catalog reload failed: " + ioe.getMessage();
+                    }
+                    System.out.println(result);
+                    System.out.println();
+                    out.println(result);
+                    out.flush();
+                } else if (command.toLowerCase().startsWith("mode")) {
+                    // Switch to the given category, or just report the current mode if no category is given
+                    String name = command.substring("mode".length()).trim();
+                    ServerMode mode = name.isEmpty() ? AsyncJokeServer.getServerMode() : AsyncJokeServer.setServerMode(name);
+                    String result = (mode == null) ? "Unknown mode " + name + ", the modes are " + String.join(", ", Catalog.CATEGORY_NAMES) + "."
+                            : "Server running in " + mode + ".";
+                    System.out.println(result);
+                    System.out.println();
+                    out.println(result);
+                    out.flush();
+                } else if (!command.trim().equalsIgnoreCase("toggle") && !command.trim().matches("[A-Za-z]")) {
+                    // Only "toggle", or the bare server letter sent by AsyncJokeAdminClient, changes the mode, so a typo never does
+                    out.println("Unknown command " + command.trim() + ", the commands are toggle, mode, reload, jfr, stats and shutdown.");
+                    out.flush();
                 } else {
-
-                    // Change the mode of AsyncJokeServer
-                    AsyncJokeServer.toggleIsJoke();
-                    // Decide which state is AsyncJokeServer currently running at
-                    state = (AsyncJokeServer.getIsJoke()) ? "joke" : "proverb";
+                    // Change the mode of AsyncJokeServer to the next category
+                    ServerMode mode = AsyncJokeServer.toggleServerMode();
                     // Compose result string that to be send back to Admin client
-                    String result = "Server running in " + state + " mode.";
+                    String result = "Server running in " + mode + ".";
                     // Print result string on server console for reference
                     System.out.println(result);
                     System.out.println();
 
-                    // Send result string back to client
-                    out.println(result);
-                    out.flush();
+                    // Send result string back to client
+                    out.println(result);
+                    out.flush();
+                }
+                // In case read from input stream fails
+            } catch (IOException x) {
+                System.out.println("Server read error");
+                x.printStackTrace();
+            }
+            // Close connection to client
+            sock.close();
+        } catch (IOException ioe) {
+            // In case anything wrong with the socket
+            System.out.println(ioe);
+        }
+    }
+}
+
+/*
+Define a new class that is runnable by a thread. This class serves as the Admin server.
+This thread is created and executed in the main function of AsyncJokeServer. So in other words,
+it will be initialized by AsyncJokeServer and running simultaneously with AsyncJokeServer on different threads.
+ */
+class AdminServer implements Runnable {
+    private static volatile boolean IS_RUNNING = true;
+    private static ServerSocket SERVER_SOCKET;
+
+    // Method to stop accepting Admin clients, closing the socket gets the blocking accept() out of its waiting status
+    public static synchronized void stop() {
+        IS_RUNNING = false;
+        try {
+            if (SERVER_SOCKET != null) {
+                SERVER_SOCKET.close();
+            }
+        } catch (IOException ioe) {
+            System.out.println(ioe);
+        }
+    }
+
+    public void run() {
+        int q_len = 6;
+        // Assign default primary port number
+        int port = AsyncJokeServer.getAdminPort();
+        Socket sock;
+
+        try {
+            // Create server socket and print notification to user
+            ServerSocket servsock = new ServerSocket(port, q_len);
+            synchronized (AdminServer.class) {
+                SERVER_SOCKET = servsock;
+            }
+            System.out.println("Mingfei Shao's AsyncJokeAdminServer starting up, listening at port " + port + ".");
+            System.out.println();
+
+            while (IS_RUNNING) {
+                // Blocking wait for client connection
+                sock = servsock.accept();
+                // Start AdminWorker thread to handle connected client
+                new AdminWorker(sock).start();
+            }
+        } catch (IOException ioe) {
+            // The socket has been closed by stop(), otherwise something is wrong with the socket
+            if (IS_RUNNING) {
+                System.out.println(ioe);
+                return;
+            }
+        }
+        System.out.println("AsyncJokeAdminServer shutdown!");
+    }
+}
+
+/*
+Define a Data class to store the title and the text of a joke/proverb separately.
+Each joke/proverb will be save in one Data object.
+ */
+class Data {
+    // Title of the joke/proverb
+    private String title;
+    // Text of the joke/proverb
+    private String text;
+
+    // Constructor
+    Data(String ttl, String txt) {
+        title = ttl;
+        text = txt;
+    }
+
+    // Use getters to keep privacy
+    public String getTitle() {
+        return title;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
+
+/*
+Define a Catalog to hold every joke/proverb the server is currently using, as an immutable and versioned snapshot.
+The server publishes a new Catalog by replacing a single volatile reference, so a reload never blocks a request.
+Each Worker picks up the current Catalog once when the request comes in, and uses that same Catalog until the reply has been sent,
+even if a newer one has been published in the meantime.
+ */
+class Catalog {
+    // Names of the categories, in the order of their list index, fixed for the life of the server (-Dasyncjoke.categories=<name>,...)
+    // The list index of a category is also the index of its status table in the ClientStatusTable, so keep the order across restarts
+    static final String[] CATEGORY_NAMES = System.getProperty("asyncjoke.categories", "proverb,joke").toLowerCase().split("\\s*,\\s*");
+    // Largest title plus text of a joke/proverb in UTF-8 bytes, so that a reply fits into one datagram of the DeliveryWorker
+    static final int MAX_ITEM_LENGTH = 1000;
+
+    private final int version;
+    private final List<List<Data>> wholeList;
+
+    // Constructor, the lists are copied so that nobody can change them afterwards
+    Catalog(int v, List<? extends List<Data>> lists) {
+        version = v;
+        ArrayList<List<Data>> copy = new ArrayList<>();
+        for (List<Data> list : lists) {
+            copy.add(Collections.unmodifiableList(new ArrayList<>(list)));
+        }
+        wholeList = Collections.unmodifiableList(copy);
+    }
+
+    // Method to read a Catalog from a text file, one joke/proverb per line in the form of <category>|<title>|<text>
+    // Empty lines and lines starting with # are skipped, a title plus text longer than MAX_ITEM_LENGTH bytes is refused
+    static Catalog load(String fileName, int version, int maxItemCount) throws IOException {
+        ArrayList<List<Data>> lists = new ArrayList<>();
+        for (int i = 0; i < CATEGORY_NAMES.length; i++) {
+            lists.add(new ArrayList<>());
+        }
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\|", 3);
+                int index = Arrays.asList(CATEGORY_NAMES).indexOf(fields[0].trim().toLowerCase());
+                if (fields.length < 3 || index == -1) {
+                    throw new IOException("Line " + lineNumber + " of " + fileName + " is not <category>|<title>|<text>");
+                }
+                Data item = new Data(fields[1].trim(), fields[2].trim());
+                if ((item.getTitle() + item.getText()).getBytes(StandardCharsets.UTF_8).length > MAX_ITEM_LENGTH) {
+                    throw new IOException("Line " + lineNumber + " of " + fileName + " is longer than " + MAX_ITEM_LENGTH + " bytes");
+                }
+                lists.get(index).add(item);
+            }
+        }
+        for (int i = 0; i < CATEGORY_NAMES.length; i++) {
+            if (lists.get(i).isEmpty() || lists.get(i).size() > maxItemCount) {
+                throw new IOException("Catalog must have 1 to " + maxItemCount + " " + CATEGORY_NAMES[i] + "(s), found " + lists.get(i).size());
+            }
+        }
+        return new Catalog(version, lists);
+    }
+
+    // Getter method of the version of this Catalog
+    public int getVersion() {
+        return version;
+    }
+
+    // Getter method of the joke/proverb list at the given list index
+    public List<Data> getList(int index) {
+        return wholeList.get(index);
+    }
+
+    // Getter method of the number of items in the list at the given list index
+    public int getItemCount(int index) {
+        return wholeList.get(index).size();
+    }
+
+    // Method to describe how many items there are in each category, e.g. "4 proverb(s), 4 joke(s)"
+    public String describeItemCounts() {
+        StringJoiner counts = new StringJoiner(", ");
+        for (int i = 0; i < CATEGORY_NAMES.length; i++) {
+            counts.add(getItemCount(i) + " " + CATEGORY_NAMES[i] + "(s)");
+        }
+        return counts.toString();
+    }
+}
+
+/*
+Define a ServerMode to hold which category the server is serving, as an immutable snapshot numbered by an epoch.
+A mode change never modifies a ServerMode, it publishes a new one with the next epoch through a single atomic reference,
+so a Worker reads the mode exactly once, without any lock, and serves the whole request from that snapshot,
+even if the mode changes in the meantime. The epoch is sent back with every reply and reported by the stats command,
+so a client or a tool can tell which mode change a reply was served under.
+ */
+class ServerMode {
+    final long epoch;
+    // List index of the category being served
+    final int listIndex;
+
+    ServerMode(long e, int index) {
+        epoch = e;
+        listIndex = index;
+    }
+
+    // Getter method of the name of the category being served
+    public String getName() {
+        return Catalog.CATEGORY_NAMES[listIndex];
+    }
+
+    // Method to create the mode that serves the next category, in the order of their list index
+    ServerMode next() {
+        return new ServerMode(epoch + 1, (listIndex + 1) % Catalog.CATEGORY_NAMES.length);
+    }
+
+    public String toString() {
+        return getName() + " mode (epoch " + epoch + ")";
+    }
+}
+
+/*
+Define a ClientStatusTable to store the status of each user. Users are separated by their UUID.
+Each user has two status tables, representing the status of proverb and joke respectively. A status table holds the indexes
+of the items that are still left in the current cycle, in the order they will be sent out.
+The number of items is passed in by the Worker from the Catalog it is using. A new user starts with empty status tables, and a status table
+that is empty starts a new cycle with the current number of items the next time it is used. If the Catalog has shrunk, indexes
+that no longer exist are dropped from the current cycle; if it has grown, the new items show up from the next cycle on.
+There are two backends: HeapClientStatusTable keeps everything as Java objects and persists them with a ClientStatusLog,
+MappedClientStatusTable keeps everything in a memory-mapped file outside of the Java heap.
+ */
+abstract class ClientStatusTable {
+    // Method to add a new user (UUID) into ClientStatusTable
+    public abstract void add(UUID uuid);
+
+    // Method to pop out the index value at the top of a status table, the index values indicates which status table to use
+    public abstract int popIndex(UUID uuid, int index, int itemCount);
+
+    // Helper method to check if a four-item cycle has finished, which means the last index has been poped out
+    public abstract boolean isCycleFinished(UUID uuid, int index);
+
+    // Setter method to re-create the index table once a cycle has finished
+    public abstract void setIndexTable(UUID uuid, int index, int itemCount);
+
+    // Helper method to check if a UUID is in the ClientStatusTable already
+    public abstract boolean containsUUID(UUID uuid);
+
+    // Getter method to retrieve the entry of status tables based on UUID
+    public abstract ArrayList<LinkedList<Integer>> getIndexTable(UUID uuid);
+
+    // Getter method of the number of users in the ClientStatusTable
+    public abstract int size();
+
+    // Method to remove a entry of status tables based on UUID
+    public abstract void removeIndexTable(UUID uuid);
+
+    // Method to save everything that is still in memory, used when the server shuts down
+    public abstract void close();
+
+    // Getter method of the largest number of items in one category this backend can keep track of
+    public abstract int getMaxItemCount();
+
+    // Getter method of the largest number of categories this backend can keep track of
+    public abstract int getMaxCategoryCount();
+
+    // Method to initialize status table
+    public LinkedList<Integer> initializeIndexTable(int itemCount) {
+        // Create the LinkedList to store the indexes
+        LinkedList<Integer> indexTable = new LinkedList<>();
+        for (int i = 0; i < itemCount; i++) {
+            // Add index 0, 1, 2, ... into LinkedList sequentially
+            indexTable.add(i);
+        }
+        // Randomize the order of indexes
+        Collections.shuffle(indexTable, new Random(System.currentTimeMillis()));
+        return indexTable;
+    }
+}
+
+/*
+Define a HeapClientStatusTable, the default backend of ClientStatusTable.
+The data structure used for HeapClientStatusTable is a ConcurrentHashMap, which uses UUID as a key to retrieve the status table of that UUID.
+The value part is an ArrayList of LinkedLists. Each ArrayList contains one LinkedList per category, representing the status of that category,
+and grows if a category is used that did not exist yet when the entry was created (e.g. restored from a server run with fewer categories).
+The reason why to use an ArrayList is because it is easier to manipulate the content inside via its methods.
+Each ArrayList is also used as the lock of its own UUID, so different users never block each other, and the snapshot thread can walk the table
+while the Workers keep running. Every change is reported to the ClientStatusLog (if any) while the lock is held, so the log sees the changes of one UUID in order.
+When the table is restored from a snapshot, the ConcurrentHashMap only holds the users seen since the restart: every other user stays
+in the memory-mapped ClientStatusSnapshot, and is decoded into the ConcurrentHashMap the first time it is used.
+ */
+class HeapClientStatusTable extends ClientStatusTable {
+    ConcurrentHashMap<UUID, ArrayList<LinkedList<Integer>>> csTable;
+    // Write-ahead log that records every change of the table, null if the table is not persisted
+    private volatile ClientStatusLog log;
+    // Snapshot holding the users that have not been used since the restart, null if there is none
+    private volatile ClientStatusSnapshot base;
+    // UUIDs removed since the restart, which must not be decoded from the snapshot again
+    private final Set<UUID> removed = ConcurrentHashMap.newKeySet();
+    // Number of users, including the ones only in the snapshot
+    private final AtomicInteger userCount = new AtomicInteger();
+
+    // Initialize the HeapClientStatusTable as a ConcurrentHashMap
+    HeapClientStatusTable() {
+        csTable = new ConcurrentHashMap<>();
+    }
+
+    // Setter method of the write-ahead log, called once the table has been restored, or with null to stop logging
+    public void setLog(ClientStatusLog l) {
+        log = l;
+    }
+
+    // Getter method of the snapshot holding the users not used since the restart
+    public ClientStatusSnapshot getBase() {
+        return base;
+    }
+
+    // Setter method of the snapshot holding the users not used since the restart, called once a new snapshot has been written
+    // Removed UUIDs that are not in the new snapshot do not need to be remembered any more
+    public void setBase(ClientStatusSnapshot snapshot, boolean isRestoring) {
+        base = snapshot;
+        if (isRestoring) {
+            userCount.set(snapshot.getCount());
+        }
+        removed.removeIf(uuid -> !snapshot.contains(uuid));
+    }
+
+    // Helper method to check if a UUID has been removed since the restart
+    public boolean isRemoved(UUID uuid) {
+        return removed.contains(uuid);
+    }
+
+    // Helper method to get the entry of status tables of a UUID, decoding it from the snapshot the first time it is used
+    // Returns null if the UUID is not in the table
+    private ArrayList<LinkedList<Integer>> entryOf(UUID uuid) {
+        ArrayList<LinkedList<Integer>> wholeIndexTable = csTable.get(uuid);
+        ClientStatusSnapshot snapshot = base;
+        if (wholeIndexTable != null || snapshot == null) {
+            return wholeIndexTable;
+        }
+        // Decoding is done inside computeIfAbsent, so two requests of the same user never end up with two different entries
+        return csTable.computeIfAbsent(uuid, key -> removed.contains(key) ? null : snapshot.lookup(key));
+    }
+
+    // Method to add a new user (UUID) into ClientStatusTable
+    public void add(UUID uuid) {
+        if (entryOf(uuid) != null) {
+            return;
+        }
+        // Create the ArrayList to store one status table per category
+        ArrayList<LinkedList<Integer>> wholeIndexTable = new ArrayList<>();
+        // Each status table is empty until the first item of its category is requested
+        for (int i = 0; i < Catalog.CATEGORY_NAMES.length; i++) {
+            wholeIndexTable.add(new LinkedList<>());
+        }
+        // Associate the new status tables with UUID, only the first of two concurrent requests from a new user wins
+        synchronized (wholeIndexTable) {
+            if (csTable.putIfAbsent(uuid, wholeIndexTable) == null) {
+                removed.remove(uuid);
+                userCount.incrementAndGet();
+                ClientStatusLog currentLog = log;
+                if (currentLog != null) {
+                    for (int i = 0; i < wholeIndexTable.size(); i++) {
+                        currentLog.logIndexTable(uuid, i, wholeIndexTable.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+    // Method to pop out the index value at the top of a status table, the index values indicates which status table to use
+    public int popIndex(UUID uuid, int index, int itemCount) {
+        ArrayList<LinkedList<Integer>> wholeIndexTable = entryOf(uuid);
+        synchronized (wholeIndexTable) {
+            LinkedList<Integer> indexTable = indexTableOf(wholeIndexTable, index);
+            // Drop the items that are gone from the Catalog
+            indexTable.removeIf(i -> i >= itemCount);
+            // A new user, or another request of the same user may have finished the cycle in the meantime, start a new one
+            if (indexTable.isEmpty()) {
+                indexTable = initializeIndexTable(itemCount);
+                wholeIndexTable.set(index, indexTable);
+            }
+            int currentIndex = indexTable.pop();
+            ClientStatusLog currentLog = log;
+            if (currentLog != null) {
+                currentLog.logIndexTable(uuid, index, indexTable);
+            }
+            return currentIndex;
+        }
+    }
+
+    // Helper method to check if a four-item cycle has finished, which means the last index has been poped out
+    public boolean isCycleFinished(UUID uuid, int index) {
+        ArrayList<LinkedList<Integer>> wholeIndexTable = entryOf(uuid);
+        synchronized (wholeIndexTable) {
+            return indexTableOf(wholeIndexTable, index).isEmpty();
+        }
+    }
+
+    // Helper method to get a status table, adding empty status tables up to the given index if the entry does not have it yet
+    // Only called while holding the lock of the entry
+    private static LinkedList<Integer> indexTableOf(ArrayList<LinkedList<Integer>> wholeIndexTable, int index) {
+        while (wholeIndexTable.size() <= index) {
+            wholeIndexTable.add(new LinkedList<>());
+        }
+        return wholeIndexTable.get(index);
+    }
+
+    // Setter method to re-create the index table once a cycle has finished
+    public void setIndexTable(UUID uuid, int index, int itemCount) {
+        // The index values indicates which status table should be re-created, the list index of its category
+        ArrayList<LinkedList<Integer>> wholeIndexTable = entryOf(uuid);
+        synchronized (wholeIndexTable) {
+            LinkedList<Integer> indexTable = initializeIndexTable(itemCount);
+            indexTableOf(wholeIndexTable, index);
+            wholeIndexTable.set(index, indexTable);
+            ClientStatusLog currentLog = log;
+            if (currentLog != null) {
+                currentLog.logIndexTable(uuid, index, indexTable);
+            }
+        }
+    }
+
+    // Method used by the ClientStatusLog to put back a status table while replaying the log, nothing is logged here
+    public void restoreIndexTable(UUID uuid, int index, LinkedList<Integer> indexTable) {
+        ArrayList<LinkedList<Integer>> wholeIndexTable = entryOf(uuid);
+        if (wholeIndexTable == null) {
+            wholeIndexTable = new ArrayList<>();
+            csTable.put(uuid, wholeIndexTable);
+            removed.remove(uuid);
+            userCount.incrementAndGet();
+        }
+        // Fill the gap with empty status tables if the log only knows about a later one
+        indexTableOf(wholeIndexTable, index);
+        wholeIndexTable.set(index, indexTable);
+    }
+
+    // Helper method to check if a UUID is in the ClientStatusTable already, without decoding it from the snapshot
+    public boolean containsUUID(UUID uuid) {
+        ClientStatusSnapshot snapshot = base;
+        return csTable.containsKey(uuid) || (snapshot != null && !removed.contains(uuid) && snapshot.contains(uuid));
+    }
+
+    // Getter method to retrieve the entry of status tables based on UUID
+    public ArrayList<LinkedList<Integer>> getIndexTable(UUID uuid) {
+        return entryOf(uuid);
+    }
+
+    // Getter method of the number of users in the ClientStatusTable
+    public int size() {
+        return userCount.get();
+    }
+
+    // Method to flush the write-ahead log and write a last snapshot, used when the server shuts down
+    public void close() {
+        ClientStatusLog currentLog = log;
+        if (currentLog != null) {
+            currentLog.close();
+        }
+    }
+
+    // Indexes are written to the log as single bytes
+    public int getMaxItemCount() {
+        return Byte.MAX_VALUE;
+    }
+
+    // List indexes are written to the log as single bytes as well
+    public int getMaxCategoryCount() {
+        return Byte.MAX_VALUE;
+    }
+
+    // Method to remove a entry of status tables based on UUID
+    public void removeIndexTable(UUID uuid) {
+        ArrayList<LinkedList<Integer>> wholeIndexTable = entryOf(uuid);
+        if (wholeIndexTable == null) {
+            return;
+        }
+        synchronized (wholeIndexTable) {
+            // Remember the removal first, so the UUID cannot be decoded from the snapshot again once it is gone from the map
+            removed.add(uuid);
+            if (csTable.get(uuid) == wholeIndexTable) {
+                csTable.remove(uuid);
+                userCount.decrementAndGet();
+                ClientStatusLog currentLog = log;
+                if (currentLog != null) {
+                    currentLog.logRemoval(uuid);
+                }
+            }
+        }
+    }
+}
+
+/*
+Define a ClientStatusLog to keep the ClientStatusTable across restarts. It is made of two kinds of files, both named after the server port:
+a. <name>.wal.<generation>: append-only write-ahead log. Each record is the whole status table of one UUID and one list after a change
+(or a removal of a UUID), so replaying a record twice does no harm. Workers only encode the record and put it into a queue,
+the writer thread drains the queue, writes everything it got with one write call and forces it to disk once per batch (group commit).
+b. <name>.snapshot: compact binary copy of the whole table sorted by UUID (see ClientStatusSnapshot), written every SNAPSHOT_INTERVAL by the snapshot thread.
+Before copying the table, the snapshot thread asks the writer to switch to a new generation. Every change made after that point ends up
+in the new generation, so the snapshot plus the log files from that generation on are enough to rebuild the table, and older files are deleted.
+The users in the ConcurrentHashMap are copied one UUID at a time under the lock of that UUID only, so Workers are never stalled by a snapshot,
+and merged with the users still only in the previous snapshot, whose bytes are copied as they are.
+On startup the snapshot is only memory-mapped, and the log files are replayed on top of it.
+ */
+class ClientStatusLog {
+    // Format version of the snapshot files written before ClientStatusSnapshot, which are still read
+    private static final int LEGACY_SNAPSHOT_VERSION = 1;
+    // Record types in the write-ahead log
+    private static final byte RECORD_INDEX_TABLE = 1;
+    private static final byte RECORD_REMOVAL = 2;
+    // Length and checksum in front of each record
+    private static final int RECORD_HEADER_SIZE = 8;
+    // Maximum number of records written and forced to disk together
+    private static final int MAX_BATCH = 4096;
+    // Define the interval between two snapshots
+    private static final int SNAPSHOT_INTERVAL = 60000;
+    // Markers put into the queue to ask the writer thread to switch to a new generation or to stop
+    private static final byte[] ROTATE = new byte[0];
+    private static final byte[] STOP = new byte[0];
+
+    private final HeapClientStatusTable table;
+    private final Path snapshotFile;
+    private final Path directory;
+    private final String walPrefix;
+    // Queue of encoded records waiting to be written by the writer thread
+    private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    // Generation of the log file the writer thread is currently appending to
+    private volatile long generation;
+    private FileChannel walChannel;
+    private Thread writerThread;
+    private Thread snapshotThread;
+    private volatile boolean isRunning = true;
+    // Set once the writer thread has failed, changes are then only saved by the last snapshot
+    private volatile boolean isFailed = false;
+
+    ClientStatusLog(HeapClientStatusTable t, String name) {
+        table = t;
+        directory = Paths.get(".").toAbsolutePath().normalize();
+        snapshotFile = directory.resolve(name + ".snapshot");
+        walPrefix = name + ".wal.";
+    }
+
+    // Method to build a HeapClientStatusTable from the latest snapshot and log files, and start logging every change made afterwards
+    static HeapClientStatusTable restore(String name) throws IOException {
+        HeapClientStatusTable t = new HeapClientStatusTable();
+        ClientStatusLog log = new ClientStatusLog(t, name);
+        long startTime = System.currentTimeMillis();
+        log.open();
+        System.out.println("ClientStatusTable restored with " + t.size() + " user(s) in " + (System.currentTimeMillis() - startTime) + " ms.");
+        t.setLog(log);
+        return t;
+    }
+
+    // Method to load the snapshot, replay the log files, and start the writer and snapshot threads
+    void open() throws IOException {
+        long firstGeneration = loadSnapshot();
+        long lastGeneration = firstGeneration - 1;
+        for (long gen : listGenerations()) {
+            if (gen < firstGeneration) {
+                // Already covered by the snapshot
+                Files.deleteIfExists(walFile(gen));
+            } else {
+                replay(walFile(gen));
+                lastGeneration = gen;
+            }
+        }
+        // Always start a new log file, so a torn record at the end of the old one is never appended to
+        generation = lastGeneration + 1;
+        walChannel = openWal(generation);
+
+        writerThread = new Thread(this::writeLoop, "ClientStatusLog-writer");
+        writerThread.setDaemon(true);
+        snapshotThread = new Thread(this::snapshotLoop, "ClientStatusLog-snapshot");
+        snapshotThread.setDaemon(true);
+        writerThread.start();
+        snapshotThread.start();
+    }
+
+    // Method called by the HeapClientStatusTable (holding the lock of the UUID) after a status table has changed
+    void logIndexTable(UUID uuid, int index, LinkedList<Integer> indexTable) {
+        if (isFailed) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(1 + 16 + 2 + indexTable.size());
+        record.put(RECORD_INDEX_TABLE);
+        record.putLong(uuid.getMostSignificantBits());
+        record.putLong(uuid.getLeastSignificantBits());
+        record.put((byte) index);
+        record.put((byte) indexTable.size());
+        for (int i : indexTable) {
+            record.put((byte) i);
+        }
+        queue.add(record.array());
+    }
+
+    // Method called by the HeapClientStatusTable (holding the lock of the UUID) after a UUID has been removed
+    void logRemoval(UUID uuid) {
+        if (isFailed) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(1 + 16);
+        record.put(RECORD_REMOVAL);
+        record.putLong(uuid.getMostSignificantBits());
+        record.putLong(uuid.getLeastSignificantBits());
+        queue.add(record.array());
+    }
+
+    // Method to write a last snapshot and flush every record still in the queue, used when the server shuts down
+    void close() {
+        isRunning = false;
+        snapshotThread.interrupt();
+        try {
+            snapshotThread.join();
+            writeSnapshot();
+            queue.add(STOP);
+            writerThread.join();
+        } catch (IOException ioe) {
+            System.out.println("Cannot write ClientStatusTable snapshot: " + ioe);
+        } catch (InterruptedException ie) {
+            ie.printStackTrace();
+        }
+    }
+
+    // Writer thread: drain the queue and write every record it got as one batch
+    private void writeLoop() {
+        ArrayList<byte[]> batch = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+        CRC32 crc = new CRC32();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                buffer.clear();
+                for (byte[] record : batch) {
+                    if (record == ROTATE || record == STOP) {
+                        // Flush what belongs to the current generation before switching
+                        buffer = flush(buffer);
+                        walChannel.close();
+                        if (record == STOP) {
+                            return;
+                        }
+                        walChannel = openWal(++generation);
+                        continue;
+                    }
+                    if (buffer.remaining() < RECORD_HEADER_SIZE + record.length) {
+                        buffer = flush(buffer);
+                    }
+                    crc.reset();
+                    crc.update(record, 0, record.length);
+                    buffer.putInt(record.length);
+                    buffer.putInt((int) crc.getValue());
+                    buffer.put(record);
+                }
+                flush(buffer);
+                batch.clear();
+            }
+        } catch (IOException ioe) {
+            System.out.println("ClientStatusTable log write error, changes are no longer persisted: " + ioe);
+            stopLogging();
+        } catch (InterruptedException ie) {
+            ie.printStackTrace();
+        }
+    }
+
+    // Method called when the writer thread fails: no record is queued any more, and the snapshot thread stops rotating and deleting log files
+    // The last snapshot written by close() still saves the table as it is in memory
+    private void stopLogging() {
+        isFailed = true;
+        isRunning = false;
+        queue.clear();
+        snapshotThread.interrupt();
+    }
+
+    // Helper method to write out a buffer and force it to disk, returns the cleared buffer
+    private ByteBuffer flush(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            walChannel.write(buffer);
+        }
+        if (buffer.limit() > 0) {
+            walChannel.force(false);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    // Snapshot thread: write a snapshot every SNAPSHOT_INTERVAL until the log is closed
+    private void snapshotLoop() {
+        while (isRunning) {
+            try {
+                Thread.sleep(SNAPSHOT_INTERVAL);
+                writeSnapshot();
+            } catch (InterruptedException ie) {
+                return;
+            } catch (IOException ioe) {
+                System.out.println("Cannot write ClientStatusTable snapshot: " + ioe);
+            }
+        }
+    }
+
+    /*
+    Method to write a snapshot into a temporary file, and then to move it in place of the previous snapshot.
+    The users are written in UUID order, merging the sorted UUIDs of the ConcurrentHashMap with the index of the previous snapshot.
+    The index records go into a second temporary file while the status tables are written, and are appended once the number of users is known.
+     */
+    private synchronized void writeSnapshot() throws IOException {
+        // Every change queued from now on goes to the next generation
+        long firstGeneration = generation + 1;
+        if (!isFailed) {
+            queue.add(ROTATE);
+        }
+
+        Path tempFile = directory.resolve(snapshotFile.getFileName() + ".tmp");
+        Path indexFile = directory.resolve(snapshotFile.getFileName() + ".index.tmp");
+        ArrayList<UUID> hotUUIDs = new ArrayList<>(table.csTable.keySet());
+        hotUUIDs.sort(ClientStatusSnapshot::compare);
+        ClientStatusSnapshot previous = table.getBase();
+        int previousCount = (previous == null) ? 0 : previous.getCount();
+        long offset = ClientStatusSnapshot.HEADER_SIZE;
+        long count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), 1 << 16));
+             DataOutputStream index = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile), 1 << 16))) {
+            // Room for the header, which is written last
+            out.write(new byte[ClientStatusSnapshot.HEADER_SIZE]);
+            int i = 0;
+            int j = 0;
+            while (i < previousCount || j < hotUUIDs.size()) {
+                UUID uuid;
+                int previousPosition = -1;
+                int order = (i == previousCount) ? 1 : (j == hotUUIDs.size()) ? -1 : ClientStatusSnapshot.compare(previous.getUUID(i), hotUUIDs.get(j));
+                if (order < 0) {
+                    previousPosition = i;
+                    uuid = previous.getUUID(i++);
+                } else {
+                    uuid = hotUUIDs.get(j++);
+                    if (order == 0) {
+                        // Same user in both, the ConcurrentHashMap is newer
+                        i++;
+                    }
+                }
+                byte[] copy = copyHotEntry(uuid);
+                if (copy == null && previousPosition != -1 && !table.isRemoved(uuid)) {
+                    // Not used since the previous snapshot was written
+                    copy = previous.copyEntry(previousPosition);
+                }
+                if (copy == null) {
+                    // Removed in the meantime
+                    continue;
+                }
+                index.writeLong(uuid.getMostSignificantBits());
+                index.writeLong(uuid.getLeastSignificantBits());
+                index.writeLong(offset);
+                out.write(copy);
+                offset += copy.length;
+                count++;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+             FileChannel indexChannel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            channel.position(offset);
+            long transferred = 0;
+            while (transferred < indexChannel.size()) {
+                transferred += indexChannel.transferTo(transferred, indexChannel.size() - transferred, channel);
+            }
+            ByteBuffer header = ByteBuffer.allocate(ClientStatusSnapshot.HEADER_SIZE);
+            header.putInt(ClientStatusSnapshot.MAGIC).putInt(ClientStatusSnapshot.VERSION).putLong(firstGeneration).putLong(count).putLong(offset);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        Files.delete(indexFile);
+        // Check that the new snapshot can be read back before it replaces the previous one, e.g. that it is not over 2GB,
+        // otherwise the previous snapshot and every log file since are kept, and the table is still restored from them
+        ClientStatusSnapshot snapshot;
+        try {
+            snapshot = ClientStatusSnapshot.open(tempFile);
+        } catch (IOException ioe) {
+            Files.deleteIfExists(tempFile);
+            throw ioe;
+        }
+        // The mapping of the temporary file stays valid once it has been moved
+        Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // Users not used so far are read from the new snapshot from now on
+        table.setBase(snapshot, false);
+
+        // Log files of earlier generations are covered by the new snapshot now
+        for (long gen : listGenerations()) {
+            if (gen < firstGeneration - 1) {
+                Files.deleteIfExists(walFile(gen));
+            }
+        }
+    }
+
+    // Helper method to encode the status tables of a user in the ConcurrentHashMap under its lock, returns null if the user is not there
+    private byte[] copyHotEntry(UUID uuid) {
+        ArrayList<LinkedList<Integer>> wholeIndexTable = table.csTable.get(uuid);
+        if (wholeIndexTable == null) {
+            return null;
+        }
+        synchronized (wholeIndexTable) {
+            if (table.csTable.get(uuid) != wholeIndexTable) {
+                // Removed in the meantime
+                return null;
+            }
+            return ClientStatusSnapshot.encode(wholeIndexTable);
+        }
+    }
+
+    // Method to read the snapshot file, returns the first log generation that has to be replayed on top of it
+    // A snapshot is only mapped, a legacy snapshot is read into the ConcurrentHashMap at once
+    private long loadSnapshot() throws IOException {
+        if (!Files.exists(snapshotFile)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), ClientStatusSnapshot.HEADER_SIZE));
+            if (in.getInt() != ClientStatusSnapshot.MAGIC) {
+                throw new IOException("Unknown snapshot format: " + snapshotFile);
+            }
+            if (in.getInt() != LEGACY_SNAPSHOT_VERSION) {
+                ClientStatusSnapshot snapshot = ClientStatusSnapshot.open(snapshotFile);
+                table.setBase(snapshot, true);
+                return snapshot.getFirstGeneration();
+            }
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            in.position(8);
+            long firstGeneration = in.getLong();
+            while (true) {
+                long msb = in.getLong();
+                long lsb = in.getLong();
+                if (msb == 0 && lsb == 0) {
+                    return firstGeneration;
+                }
+                UUID uuid = new UUID(msb, lsb);
+                int listCount = in.get();
+                for (int index = 0; index < listCount; index++) {
+                    table.restoreIndexTable(uuid, index, readIndexTable(in));
+                }
+            }
+        } catch (BufferUnderflowException bue) {
+            throw new IOException("Snapshot is truncated: " + snapshotFile);
+        }
+    }
+
+    // Method to replay one log file, stops at the first torn or corrupted record
+    private void replay(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            byte[] record = new byte[512];
+            while (in.remaining() >= RECORD_HEADER_SIZE) {
+                int length = in.getInt();
+                int checksum = in.getInt();
+                if (length <= 0 || length > record.length || length > in.remaining()) {
+                    break;
+                }
+                in.get(record, 0, length);
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                ByteBuffer recordBuffer = ByteBuffer.wrap(record, 0, length);
+                byte type = recordBuffer.get();
+                UUID uuid = new UUID(recordBuffer.getLong(), recordBuffer.getLong());
+                if (type == RECORD_INDEX_TABLE) {
+                    int index = recordBuffer.get();
+                    table.restoreIndexTable(uuid, index, readIndexTable(recordBuffer));
+                } else if (type == RECORD_REMOVAL) {
+                    table.removeIndexTable(uuid);
+                }
+            }
+        }
+    }
+
+    // Helper method to read one status table: its size followed by its indexes
+    private static LinkedList<Integer> readIndexTable(ByteBuffer in) {
+        LinkedList<Integer> indexTable = new LinkedList<>();
+        int count = in.get();
+        for (int i = 0; i < count; i++) {
+            indexTable.add((int) in.get());
+        }
+        return indexTable;
+    }
+
+    // Helper method to find the generations of every log file on disk, in ascending order
+    private ArrayList<Long> listGenerations() throws IOException {
+        ArrayList<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, walPrefix + "*")) {
+            for (Path file : files) {
+                try {
+                    generations.add(Long.parseLong(file.getFileName().toString().substring(walPrefix.length())));
+                } catch (NumberFormatException nfe) {
+                    // Not one of our log files
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private Path walFile(long gen) {
+        return directory.resolve(walPrefix + gen);
+    }
+
+    private FileChannel openWal(long gen) throws IOException {
+        return FileChannel.open(walFile(gen), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+}
+
+/*
+Define a ClientStatusSnapshot to read a snapshot file written by the ClientStatusLog without loading it into the Java heap.
+The file is laid out as:
+a. Header: magic number, format version, first log generation to replay on top of it, number of users, and where the index starts.
+b. The status tables of every user: the number of status tables, then for each of them its size followed by its indexes, one byte each.
+c. Index: one record of (UUID, offset of its status tables) per user, sorted by UUID.
+The number of users is in the header, so no UUID is reserved as an end marker. The file is memory-mapped, so opening it takes
+the same time for any number of users, and the status tables of a user are only found (by a binary search of the index) and decoded
+when the user is first seen. A snapshot larger than 2GB cannot be mapped at once and is refused.
+ */
+class ClientStatusSnapshot {
+    // Magic number and format version at the head of a snapshot file, version 1 was a stream of entries ended by an all-zero UUID
+    static final int MAGIC = 0x414A5354;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 32;
+    private static final int INDEX_RECORD_SIZE = 24;
+
+    private final MappedByteBuffer buffer;
+    private final long firstGeneration;
+    private final int count;
+    private final int indexOffset;
+
+    private ClientStatusSnapshot(MappedByteBuffer b) throws IOException {
+        buffer = b;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Unknown snapshot format");
+        }
+        firstGeneration = buffer.getLong(8);
+        long userCount = buffer.getLong(16);
+        long offset = buffer.getLong(24);
+        if (userCount < 0 || offset < HEADER_SIZE || offset + userCount * INDEX_RECORD_SIZE != buffer.capacity()) {
+            throw new IOException("Snapshot is truncated");
+        }
+        count = (int) userCount;
+        indexOffset = (int) offset;
+    }
+
+    // Method to map a snapshot file, the mapping stays valid after the file has been replaced by a newer snapshot
+    static ClientStatusSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot larger than 2GB");
+            }
+            return new ClientStatusSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException ioe) {
+            throw new IOException(ioe.getMessage() + ": " + file, ioe);
+        }
+    }
+
+    // Getter method of the first log generation that has to be replayed on top of this snapshot
+    public long getFirstGeneration() {
+        return firstGeneration;
+    }
+
+    // Getter method of the number of users in this snapshot
+    public int getCount() {
+        return count;
+    }
+
+    // Getter method of the UUID at the given position of the index
+    public UUID getUUID(int position) {
+        int record = indexOffset + position * INDEX_RECORD_SIZE;
+        return new UUID(buffer.getLong(record), buffer.getLong(record + 8));
+    }
+
+    // Helper method to find the position of a UUID in the index by binary search, returns -1 if it is not there
+    private int find(UUID uuid) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int record = indexOffset + middle * INDEX_RECORD_SIZE;
+            int order = compare(buffer.getLong(record), buffer.getLong(record + 8), uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    // Helper method to check if a UUID is in this snapshot
+    public boolean contains(UUID uuid) {
+        return find(uuid) != -1;
+    }
+
+    // Method to decode the status tables of a UUID, returns null if it is not in this snapshot
+    public ArrayList<LinkedList<Integer>> lookup(UUID uuid) {
+        int position = find(uuid);
+        if (position == -1) {
+            return null;
+        }
+        int pos = (int) buffer.getLong(indexOffset + position * INDEX_RECORD_SIZE + 16);
+        ArrayList<LinkedList<Integer>> wholeIndexTable = new ArrayList<>();
+        int listCount = buffer.get(pos++);
+        for (int index = 0; index < listCount; index++) {
+            LinkedList<Integer> indexTable = new LinkedList<>();
+            int size = buffer.get(pos++);
+            for (int i = 0; i < size; i++) {
+                indexTable.add((int) buffer.get(pos++));
+            }
+            wholeIndexTable.add(indexTable);
+        }
+        return wholeIndexTable;
+    }
+
+    // Method to copy the encoded status tables at the given position of the index, as they are written into a snapshot
+    public byte[] copyEntry(int position) {
+        int start = (int) buffer.getLong(indexOffset + position * INDEX_RECORD_SIZE + 16);
+        int pos = start;
+        int listCount = buffer.get(pos++);
+        for (int index = 0; index < listCount; index++) {
+            pos += 1 + buffer.get(pos);
+        }
+        byte[] copy = new byte[pos - start];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = buffer.get(start + i);
+        }
+        return copy;
+    }
+
+    // Method to encode the status tables of a user, as they are written into a snapshot
+    static byte[] encode(ArrayList<LinkedList<Integer>> wholeIndexTable) {
+        int length = 1;
+        for (LinkedList<Integer> indexTable : wholeIndexTable) {
+            length += 1 + indexTable.size();
+        }
+        byte[] copy = new byte[length];
+        int pos = 0;
+        copy[pos++] = (byte) wholeIndexTable.size();
+        for (LinkedList<Integer> indexTable : wholeIndexTable) {
+            copy[pos++] = (byte) indexTable.size();
+            for (int i : indexTable) {
+                copy[pos++] = (byte) i;
+            }
+        }
+        return copy;
+    }
+
+    // Helper method to order UUIDs in the index, by the signed value of their most and then least significant bits
+    static int compare(long msb1, long lsb1, long msb2, long lsb2) {
+        return (msb1 != msb2) ? Long.compare(msb1, msb2) : Long.compare(lsb1, lsb2);
+    }
+
+    static int compare(UUID uuid1, UUID uuid2) {
+        return compare(uuid1.getMostSignificantBits(), uuid1.getLeastSignificantBits(), uuid2.getMostSignificantBits(), uuid2.getLeastSignificantBits());
+    }
+}
+
+/*
+Define a MappedClientStatusTable, the off-heap backend of ClientStatusTable, selected with -Dasyncjoke.store=mapped.
+All status tables live in a memory-mapped file, so the Java heap does not grow with the number of users and the table survives restarts.
+The file starts with a header, followed by a fixed number of slots forming an open-addressing hash table with linear probing.
+Each slot holds its state, the 128 bits of a UUID, and MAX_LISTS packed status tables, one long each:
+the lowest 4 bits are the number of indexes left in the cycle, and every following 4 bits hold one index, the next one to be sent out first.
+The state tells an empty slot from a used one, so every UUID (the all-zero one included) can be stored, and a removed UUID turns its slot
+into a tombstone that is skipped but never reused. A file of the first format, which used reserved UUIDs as markers instead, is migrated on open.
+Slots are guarded by a fixed number of lock stripes, each stripe covering a run of neighbouring slots.
+ */
+class MappedClientStatusTable extends ClientStatusTable {
+    // Magic number and format version at the head of the file
+    private static final int FILE_MAGIC = 0x414A4354;
+    private static final int FILE_VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    // Number of status tables kept for each user, and the largest number of items a packed status table can hold
+    static final int MAX_LISTS = 4;
+    static final int MAX_ITEMS = 15;
+    // Layout of a slot: state, UUID, then the packed status tables
+    private static final int KEY_OFFSET = 8;
+    private static final int LISTS_OFFSET = 24;
+    private static final int SLOT_SIZE = LISTS_OFFSET + 8 * MAX_LISTS;
+    // Layout of a slot in the first format: UUID, then the packed status tables
+    private static final int LEGACY_FILE_VERSION = 1;
+    private static final int LEGACY_SLOT_SIZE = 16 + 8 * MAX_LISTS;
+    // A single MappedByteBuffer cannot be larger than 2GB, so the slots are mapped in segments
+    private static final int SEGMENT_SHIFT = 24;
+    private static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT;
+    // Number of lock stripes and the number of neighbouring slots each of them covers
+    private static final int STRIPES = 1024;
+    private static final int STRIPE_SHIFT = 6;
+    // States of a slot
+    private static final long SLOT_EMPTY = 0;
+    private static final long SLOT_USED = 1;
+    private static final long SLOT_REMOVED = 2;
+    // Key of a removed UUID in the first format, an all-zero UUID marked an empty slot
+    private static final long LEGACY_TOMBSTONE_LSB = 1;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private final Object[] locks = new Object[STRIPES];
+    private final long mask;
+    private int count;
+
+    private MappedClientStatusTable(FileChannel c, long capacity) throws IOException {
+        channel = c;
+        mask = capacity - 1;
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        int segmentCount = (int) ((capacity + SEGMENT_SLOTS - 1) >>> SEGMENT_SHIFT);
+        segments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long slots = Math.min(SEGMENT_SLOTS, capacity - ((long) i << SEGMENT_SHIFT));
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + ((long) i << SEGMENT_SHIFT) * SLOT_SIZE, slots * SLOT_SIZE);
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    // Method to open the table file, or to create it with the given number of slots (rounded up to a power of two) if it does not exist
+    static MappedClientStatusTable open(String fileName, long slots) throws IOException {
+        if (Files.exists(Paths.get(fileName + ".v1"))) {
+            // A migration from the first format was interrupted, start it over
+            return migrate(fileName);
+        }
+        return openFile(fileName, slots);
+    }
+
+    private static MappedClientStatusTable openFile(String fileName, long slots) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long capacity;
+        boolean isNew = channel.size() == 0;
+        if (isNew) {
+            capacity = Long.highestOneBit(Math.max(STRIPES, slots - 1)) << 1;
+            // Extend the file to its full size, the operating system keeps the untouched part sparse
+            channel.write(ByteBuffer.wrap(new byte[1]), HEADER_SIZE + capacity * SLOT_SIZE - 1);
+        } else {
+            ByteBuffer fileHeader = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(fileHeader, 0);
+            fileHeader.flip();
+            int magic = fileHeader.getInt();
+            int version = fileHeader.getInt();
+            if (magic != FILE_MAGIC || (version != FILE_VERSION && version != LEGACY_FILE_VERSION) || fileHeader.getInt() != MAX_LISTS) {
+                channel.close();
+                throw new IOException("Unknown table format: " + fileName);
+            }
+            capacity = fileHeader.getLong();
+            if (version == LEGACY_FILE_VERSION) {
+                channel.close();
+                Files.move(Paths.get(fileName), Paths.get(fileName + ".v1"), StandardCopyOption.ATOMIC_MOVE);
+                return migrate(fileName);
+            }
+        }
+        MappedClientStatusTable table = new MappedClientStatusTable(channel, capacity);
+        if (isNew) {
+            table.header.putInt(0, FILE_MAGIC);
+            table.header.putInt(4, FILE_VERSION);
+            table.header.putInt(8, MAX_LISTS);
+            table.header.putLong(12, capacity);
+            table.header.putInt(20, 0);
+        }
+        table.count = table.header.getInt(20);
+        return table;
+    }
+
+    public void add(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        long slot = hash(msb, lsb);
+        for (long probes = 0; probes <= mask; probes++, slot = (slot + 1) & mask) {
+            synchronized (lockOf(slot)) {
+                ByteBuffer segment = segmentOf(slot);
+                int offset = offsetOf(slot);
+                long state = segment.getLong(offset);
+                if (state == SLOT_USED && isKeyOf(segment, offset, msb, lsb)) {
+                    // Added by another request of the same user in the meantime
+                    return;
+                }
+                if (state == SLOT_EMPTY) {
+                    // Fill in the UUID and clear the status tables before marking the slot used, so a slot found after a crash is never half-written
+                    for (int i = 0; i < MAX_LISTS; i++) {
+                        segment.putLong(offset + LISTS_OFFSET + 8 * i, 0);
+                    }
+                    segment.putLong(offset + KEY_OFFSET, msb);
+                    segment.putLong(offset + KEY_OFFSET + 8, lsb);
+                    segment.putLong(offset, SLOT_USED);
+                    synchronized (header) {
+                        header.putInt(20, ++count);
+                    }
+                    return;
+                }
+            }
+        }
+        throw new IllegalStateException("MappedClientStatusTable is full");
+    }
+
+    public int popIndex(UUID uuid, int index, int itemCount) {
+        long slot = find(uuid);
+        synchronized (lockOf(slot)) {
+            ByteBuffer segment = segmentOf(slot);
+            int offset = offsetOf(slot) + LISTS_OFFSET + 8 * index;
+            long packed = segment.getLong(offset);
+            // Drop the items that are gone from the Catalog
+            if (!isInRange(packed, itemCount)) {
+                LinkedList<Integer> indexTable = unpack(packed);
+                indexTable.removeIf(i -> i >= itemCount);
+                packed = pack(indexTable);
+            }
+            // A new user, or another request of the same user may have finished the cycle in the meantime, start a new one
+            if ((packed & 0xF) == 0) {
+                packed = pack(initializeIndexTable(itemCount));
+            }
+            int currentIndex = (int) ((packed >>> 4) & 0xF);
+            // Drop the count and the first index, and put back the count minus one
+            segment.putLong(offset, ((packed >>> 8) << 4) | ((packed & 0xF) - 1));
+            return currentIndex;
+        }
+    }
+
+    public boolean isCycleFinished(UUID uuid, int index) {
+        long slot = find(uuid);
+        synchronized (lockOf(slot)) {
+            return (segmentOf(slot).getLong(offsetOf(slot) + LISTS_OFFSET + 8 * index) & 0xF) == 0;
+        }
+    }
+
+    public void setIndexTable(UUID uuid, int index, int itemCount) {
+        long slot = find(uuid);
+        synchronized (lockOf(slot)) {
+            segmentOf(slot).putLong(offsetOf(slot) + LISTS_OFFSET + 8 * index, pack(initializeIndexTable(itemCount)));
+        }
+    }
+
+    public boolean containsUUID(UUID uuid) {
+        return find(uuid) >= 0;
+    }
+
+    // The status tables are unpacked into a copy, changing it does not change the table
+    public ArrayList<LinkedList<Integer>> getIndexTable(UUID uuid) {
+        long slot = find(uuid);
+        if (slot < 0) {
+            return null;
+        }
+        ArrayList<LinkedList<Integer>> wholeIndexTable = new ArrayList<>();
+        synchronized (lockOf(slot)) {
+            for (int i = 0; i < MAX_LISTS; i++) {
+                wholeIndexTable.add(unpack(segmentOf(slot).getLong(offsetOf(slot) + LISTS_OFFSET + 8 * i)));
+            }
+        }
+        return wholeIndexTable;
+    }
+
+    public int size() {
+        synchronized (header) {
+            return count;
+        }
+    }
+
+    public void removeIndexTable(UUID uuid) {
+        long slot = find(uuid);
+        if (slot < 0) {
+            return;
+        }
+        synchronized (lockOf(slot)) {
+            segmentOf(slot).putLong(offsetOf(slot), SLOT_REMOVED);
+        }
+        synchronized (header) {
+            header.putInt(20, --count);
+        }
+    }
+
+    // Each index has to fit into 4 bits
+    public int getMaxItemCount() {
+        return MAX_ITEMS;
+    }
+
+    // Each slot has room for MAX_LISTS status tables
+    public int getMaxCategoryCount() {
+        return MAX_LISTS;
+    }
+
+    // Method to write every changed page back to the file and release it
+    public void close() {
+        header.force();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            System.out.println(ioe);
+        }
+    }
+
+    // Helper method to find the slot of a UUID, returns -1 if the UUID is not in the table
+    private long find(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        long slot = hash(msb, lsb);
+        for (long probes = 0; probes <= mask; probes++, slot = (slot + 1) & mask) {
+            synchronized (lockOf(slot)) {
+                ByteBuffer segment = segmentOf(slot);
+                int offset = offsetOf(slot);
+                long state = segment.getLong(offset);
+                if (state == SLOT_USED && isKeyOf(segment, offset, msb, lsb)) {
+                    return slot;
+                }
+                if (state == SLOT_EMPTY) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Helper method to check if a slot holds the given UUID
+    private static boolean isKeyOf(ByteBuffer segment, int offset, long msb, long lsb) {
+        return segment.getLong(offset + KEY_OFFSET) == msb && segment.getLong(offset + KEY_OFFSET + 8) == lsb;
+    }
+
+    /*
+    Method to copy a file of the first format, whose slots had no state, renamed to <fileName>.v1, into a new file of the same capacity.
+    The old file is only deleted once every user has been copied, so an interrupted migration is simply run again.
+     */
+    private static MappedClientStatusTable migrate(String fileName) throws IOException {
+        Path legacyFile = Paths.get(fileName + ".v1");
+        Files.deleteIfExists(Paths.get(fileName));
+        try (FileChannel legacyChannel = FileChannel.open(legacyFile, StandardOpenOption.READ)) {
+            ByteBuffer legacyHeader = ByteBuffer.allocate(HEADER_SIZE);
+            legacyChannel.read(legacyHeader, 0);
+            long capacity = legacyHeader.getLong(12);
+            MappedClientStatusTable table = openFile(fileName, capacity);
+            for (long first = 0; first < capacity; first += SEGMENT_SLOTS) {
+                long slots = Math.min(SEGMENT_SLOTS, capacity - first);
+                MappedByteBuffer segment = legacyChannel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * LEGACY_SLOT_SIZE, slots * LEGACY_SLOT_SIZE);
+                for (int offset = 0; offset < slots * LEGACY_SLOT_SIZE; offset += LEGACY_SLOT_SIZE) {
+                    long msb = segment.getLong(offset);
+                    long lsb = segment.getLong(offset + 8);
+                    if (msb == 0 && (lsb == 0 || lsb == LEGACY_TOMBSTONE_LSB)) {
+                        // Empty slot or tombstone
+                        continue;
+                    }
+                    UUID uuid = new UUID(msb, lsb);
+                    table.add(uuid);
+                    long slot = table.find(uuid);
+                    for (int i = 0; i < MAX_LISTS; i++) {
+                        table.segmentOf(slot).putLong(table.offsetOf(slot) + LISTS_OFFSET + 8 * i, segment.getLong(offset + 16 + 8 * i));
+                    }
                 }
-                // In case read from input stream fails
-            } catch (IOException x) {
-                System.out.println("Server read error");
-                x.printStackTrace();
             }
-            // Close connection to client
-            sock.close();
-        } catch (IOException ioe) {
-            // In case anything wrong with the socket
-            System.out.println(ioe);
+            table.header.force();
+            for (MappedByteBuffer segment : table.segments) {
+                segment.force();
+            }
+            Files.delete(legacyFile);
+            System.out.println("MappedClientStatusTable migrated to format version " + FILE_VERSION + " with " + table.size() + " user(s).");
+            return table;
+        }
+    }
+
+    // Helper method to spread the bits of a UUID over the slots
+    private long hash(long msb, long lsb) {
+        long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 29;
+        return h & mask;
+    }
+
+    private Object lockOf(long slot) {
+        return locks[(int) ((slot >>> STRIPE_SHIFT) & (STRIPES - 1))];
+    }
+
+    private ByteBuffer segmentOf(long slot) {
+        return segments[(int) (slot >>> SEGMENT_SHIFT)];
+    }
+
+    private int offsetOf(long slot) {
+        return (int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_SIZE;
+    }
+
+    // Helper method to pack a status table into a long, the first index to be sent out goes right above the count
+    static long pack(LinkedList<Integer> indexTable) {
+        long packed = 0;
+        int shift = 4;
+        for (int i : indexTable) {
+            packed |= (long) i << shift;
+            shift += 4;
+        }
+        return packed | indexTable.size();
+    }
+
+    // Helper method to check that every index left in a packed status table is below the number of items
+    static boolean isInRange(long packed, int itemCount) {
+        int size = (int) (packed & 0xF);
+        for (int i = 0; i < size; i++) {
+            if (((packed >>> (4 + 4 * i)) & 0xF) >= itemCount) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Helper method to unpack a long back into a status table
+    static LinkedList<Integer> unpack(long packed) {
+        LinkedList<Integer> indexTable = new LinkedList<>();
+        int size = (int) (packed & 0xF);
+        for (int i = 0; i < size; i++) {
+            indexTable.add((int) ((packed >>> (4 + 4 * i)) & 0xF));
         }
+        return indexTable;
     }
 }
 
 /*
-Define a new class that is runnable by a thread. This class serves as the Admin server.
-This thread is created and executed in the main function of AsyncJokeServer. So in other words,
-it will be initialized by AsyncJokeServer and running simultaneously with AsyncJokeServer on different threads.
+Define a RequestStageEvent, the Java Flight Recorder event emitted at each stage of a request, carrying the user's UUID and the request ID.
+The duration of the event is the time spent in that stage, e.g. the delay stage lasts from scheduling the reply until it is due.
+While no recording is running, shouldCommit() is false and nothing but the event object is created, which the JIT usually removes.
  */
-class AdminServer implements Runnable {
-    private static boolean IS_RUNNING = true;
-
-    public static void setIsRunningFalse() {
-        IS_RUNNING = false;
+@Name("AsyncJoke.RequestStage")
+@Label("Request Stage")
+@Category("AsyncJoke")
+@StackTrace(false)
+class RequestStageEvent extends Event {
+    // Names of the stages
+    static final String ACCEPT = "accept";
+    static final String PARSE = "parse";
+    static final String CLIENT_STATUS_TABLE = "ClientStatusTable";
+    static final String DELAY_SCHEDULED = "delay scheduled";
+    static final String DELAY_FIRED = "delay fired";
+    static final String MAKE_RETURN_STRING = "makeReturnString";
+    static final String UDP_SEND = "UDP send";
+
+    @Label("Stage")
+    String stage;
+    @Label("UUID")
+    String uuid;
+    @Label("Request ID")
+    String requestId;
+    @Label("Mode Epoch")
+    long modeEpoch;
+
+    // Method to create an event and start timing the stage
+    static RequestStageEvent begin(String stage) {
+        RequestStageEvent event = new RequestStageEvent();
+        event.stage = stage;
+        event.begin();
+        return event;
     }
 
-    public void run() {
-        int q_len = 6;
-        // Assign default primary port number
-        int port = AsyncJokeServer.getAdminPort();
-        Socket sock;
+    // Method to stop timing the stage, and write the event if a recording is running
+    void commit(String uuidString, String reqId, ServerMode mode) {
+        end();
+        if (shouldCommit()) {
+            uuid = uuidString;
+            requestId = reqId;
+            modeEpoch = mode.epoch;
+            commit();
+        }
+    }
+}
 
+/*
+Define a RequestTracer to start and stop a recording of the RequestStageEvents from the Admin client,
+so requests can be profiled on a running server without restarting it or attaching an external agent.
+ */
+class RequestTracer {
+    private static Recording RECORDING;
+    private static String FILE_NAME;
+
+    // Method to start a recording that will be written to the given file, returns a message for the Admin client
+    public static synchronized String start(String fileName) {
+        if (RECORDING != null) {
+            return "Recording to " + FILE_NAME + " is already running.";
+        }
         try {
-            // Create server socket and print notification to user
-            ServerSocket servsock = new ServerSocket(port, q_len);
-            System.out.println("Mingfei Shao's AsyncJokeAdminServer starting up, listening at port " + port + ".");
-            System.out.println();
+            Recording recording = new Recording();
+            recording.setName("AsyncJoke");
+            recording.enable(RequestStageEvent.class);
+            recording.setToDisk(true);
+            recording.setDestination(Paths.get(fileName));
+            recording.start();
+            RECORDING = recording;
+            FILE_NAME = fileName;
+            return "Recording of request stages started, it will be written to " + fileName + ".";
+        } catch (IOException | IllegalStateException | SecurityException e) {
+            return "Cannot start recording: " + e.getMessage();
+        }
+    }
 
-            while (IS_RUNNING) {
-                // Blocking wait for client connection
-                sock = servsock.accept();
-                // Start AdminWorker thread to handle connected client
-                new AdminWorker(sock).start();
+    // Method to stop the recording, which writes it to its file, returns a message for the Admin client
+    public static synchronized String stop() {
+        if (RECORDING == null) {
+            return "No recording is running.";
+        }
+        RECORDING.stop();
+        RECORDING.close();
+        RECORDING = null;
+        return "Recording of request stages stopped and written to " + FILE_NAME + ".";
+    }
+}
+
+/*
+Define a DeliveryTier to give a group of clients its own delay, deadline and weight. Every request is served in the tier of its client,
+the reply is due once the delay of the tier is over and should be sent before the deadline of the tier. When more replies are due
+than can be sent at once, the DeliveryWorker shares the sending between the clients in proportion to the weight of their tier.
+The tiers are given as -Dasyncjoke.tiers=<name>:<delay ms>:<deadline ms>:<weight>,... where the first one is the default tier,
+and clients are put into a tier by username or UUID as -Dasyncjoke.clientTiers=<username or UUID>=<tier name>,...
+ */
+class DeliveryTier {
+    final String name;
+    final long delay;
+    final long deadline;
+    final int weight;
+    // Number of replies sent in this tier so far
+    private final AtomicLong deliveredCount = new AtomicLong();
+    // Number of replies sent in this tier after their deadline
+    private final AtomicLong missedCount = new AtomicLong();
+
+    DeliveryTier(String n, long d, long dl, int w) {
+        name = n;
+        delay = d;
+        deadline = dl;
+        weight = w;
+    }
+
+    // Method to read the tiers from a list of <name>:<delay ms>:<deadline ms>:<weight>
+    static List<DeliveryTier> parseTiers(String spec) {
+        ArrayList<DeliveryTier> tiers = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
             }
-            System.out.println("AsyncJokeAdminServer shutdown!");
-        } catch (IOException ioe) {
-            // In case anything wrong with the socket
-            System.out.println(ioe);
+            String[] fields = entry.trim().split(":");
+            if (fields.length != 4) {
+                throw new IllegalArgumentException("Tier " + entry.trim() + " is not <name>:<delay ms>:<deadline ms>:<weight>");
+            }
+            long delay = Long.parseLong(fields[1]);
+            long deadline = Long.parseLong(fields[2]);
+            int weight = Integer.parseInt(fields[3]);
+            if (delay < 0 || deadline < delay || weight < 1) {
+                throw new IllegalArgumentException("Tier " + fields[0] + " needs 0 <= delay <= deadline and a weight of at least 1");
+            }
+            tiers.add(new DeliveryTier(fields[0], delay, deadline, weight));
+        }
+        if (tiers.isEmpty()) {
+            throw new IllegalArgumentException("At least one tier is needed");
+        }
+        return tiers;
+    }
+
+    // Method to read which client is in which tier from a list of <username or UUID>=<tier name>
+    static Map<String, DeliveryTier> parseClientTiers(String spec, List<DeliveryTier> tiers) {
+        HashMap<String, DeliveryTier> clientTiers = new HashMap<>();
+        for (String entry : spec.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            String[] fields = entry.trim().split("=", 2);
+            DeliveryTier tier = null;
+            for (DeliveryTier t : tiers) {
+                if (fields.length == 2 && t.name.equals(fields[1].trim())) {
+                    tier = t;
+                }
+            }
+            if (tier == null) {
+                throw new IllegalArgumentException("Client tier " + entry.trim() + " is not <username or UUID>=<tier name> of a known tier");
+            }
+            clientTiers.put(fields[0].trim(), tier);
+        }
+        return clientTiers;
+    }
+
+    // Method called by the DeliveryWorker for every reply sent in this tier
+    void recordDelivery(boolean isMissed) {
+        deliveredCount.incrementAndGet();
+        if (isMissed) {
+            missedCount.incrementAndGet();
         }
     }
+
+    // Getter method of the number of replies sent in this tier after their deadline
+    public long getMissedCount() {
+        return missedCount.get();
+    }
+
+    public String toString() {
+        return name + " (delay " + delay + "ms, deadline " + deadline + "ms, weight " + weight + "): "
+                + deliveredCount.get() + " sent, " + missedCount.get() + " missed the deadline";
+    }
 }
 
 /*
-Define a Data class to store the title and the text of a joke/proverb separately.
-Each joke/proverb will be save in one Data object.
+Define a PendingReply to hold everything needed to send a reply back to a client once its delay is over.
+PendingReplies wait in the DelayQueue of the DeliveryWorker, ordered by the time they are due.
  */
-class Data {
-    // Title of the joke/proverb
-    private String title;
-    // Text of the joke/proverb
-    private String text;
+class PendingReply implements Delayed {
+    final String username;
+    final UUID uuid;
+    final String uuidString;
+    // Request ID sent by the client, null if the client did not send one
+    final String requestId;
+    final int listIndex;
+    // Mode the request was received in, listIndex is the list index of its category
+    final ServerMode mode;
+    final Catalog catalog;
+    final InetAddress toAddr;
+    final int toPort;
+    // Tier of the client, which decides the delay, the deadline and the share of the sending
+    final DeliveryTier tier;
+    // Time the reply is due, in System.nanoTime() terms
+    private final long dueTime;
+    // Time the reply should be sent by, in System.nanoTime() terms
+    final long deadlineTime;
+    // Event timing the delay stage, from scheduling until the reply is due
+    final RequestStageEvent delayEvent = RequestStageEvent.begin(RequestStageEvent.DELAY_FIRED);
+    // Content of the reply, filled in by the DeliveryWorker once the reply has come due
+    byte[] payload;
+    // Indicator of the marker put into the DelayQueue only to wake the DeliveryWorker up
+    boolean isWakeUp = false;
+
+    PendingReply(String name, UUID id, String idString, String reqId, ServerMode m, Catalog c, InetAddress addr, int port, DeliveryTier t, long acceptTime) {
+        username = name;
+        uuid = id;
+        uuidString = idString;
+        requestId = reqId;
+        mode = m;
+        listIndex = (m == null) ? 0 : m.listIndex;
+        catalog = c;
+        toAddr = addr;
+        toPort = port;
+        tier = t;
+        dueTime = acceptTime + TimeUnit.MILLISECONDS.toNanos(t == null ? 0 : t.delay);
+        deadlineTime = acceptTime + TimeUnit.MILLISECONDS.toNanos(t == null ? 0 : t.deadline);
+    }
 
-    // Constructor
-    Data(String ttl, String txt) {
-        title = ttl;
-        text = txt;
+    // Method to create the marker that wakes the DeliveryWorker up
+    static PendingReply wakeUp() {
+        PendingReply reply = new PendingReply(null, null, null, null, null, null, null, 0, null, 0);
+        reply.isWakeUp = true;
+        return reply;
     }
 
-    // Use getters to keep privacy
-    public String getTitle() {
-        return title;
+    // A reply counts as due up to the batch window early, and every reply is due right away once the DeliveryWorker has been asked to fast-forward
+    public long getDelay(TimeUnit unit) {
+        if (isWakeUp || DeliveryWorker.isFastForward()) {
+            return 0;
+        }
+        return unit.convert(dueTime - DeliveryWorker.BATCH_WINDOW - System.nanoTime(), TimeUnit.NANOSECONDS);
     }
 
-    public String getText() {
-        return text;
+    // The wake-up marker always goes first, so that the DeliveryWorker sees it at the head of the DelayQueue
+    public int compareTo(Delayed other) {
+        PendingReply otherReply = (PendingReply) other;
+        if (isWakeUp || otherReply.isWakeUp) {
+            return Boolean.compare(otherReply.isWakeUp, isWakeUp);
+        }
+        return Long.compare(dueTime, otherReply.dueTime);
+    }
+}
+
+// Define a ReplyFlow to hold the due replies of one UUID that are waiting for their turn to be sent, in the order they came due
+class ReplyFlow {
+    final UUID uuid;
+    final int weight;
+    final ArrayDeque<PendingReply> replies = new ArrayDeque<>();
+    // Number of replies this flow may still send in its current turn
+    int deficit = 0;
+
+    ReplyFlow(UUID id, int w) {
+        uuid = id;
+        weight = w;
     }
 }
 
 /*
-Define a ClientStatusTable to store the status of each user. Users are separated by their UUID.
-The data structure used for ClientStatusTable is a Hashtable, which uses UUID as a key to retrieve the status table of that UUID.
-The value part is an ArrayList of LinkedLists. Each ArrayList contains two LinkedLists, representing the status of joke and proverb respectively.
-The reason why to use an ArrayList is because it is easier to manipulate the content inside via its methods.
+Define a DeliveryWorker to send every reply once its delay is over. Instead of sleeping on its own thread,
+a Worker only reads the request and hands a PendingReply over, and this single thread sends the replies in the order they come due,
+using one shared UDP channel. Because every reply still to be sent is in the DelayQueue, the server can drain it when shutting down.
+Replies are sent in batches: a reply counts as due up to BATCH_WINDOW early, and every reply due by then is taken out of the queue at once.
+Due replies then wait in one ReplyFlow per UUID, and each batch takes at most MAX_REPLIES_PER_BATCH of them by deficit round robin
+over the flows, each flow getting as many replies per round as the weight of its tier. So under a burst, one client with many
+requests only delays its own replies, and the other clients keep being served in proportion to their weight.
+Before each batch, the flows whose next reply is past its deadline, or within URGENT_WINDOW of it, are moved to the front of the turn order,
+earliest deadline first, so a reply close to missing its deadline does not wait behind flows that still have time.
+The replies of a batch that go to the same client address and port are packed into as few datagrams as possible, each framed as
+"#batch <count>" on its own line, followed by "<length>" on its own line and <length> bytes of reply for each reply in it.
+A reply that goes out on its own is sent straight from its payload, so it never has to fit into the packing buffer.
  */
-class ClientStatusTable {
-    Hashtable<UUID, ArrayList<LinkedList<Integer>>> csTable;
+class DeliveryWorker extends Thread {
+    // Define how early a reply may be sent to join a batch, in nanoseconds
+    static final long BATCH_WINDOW = TimeUnit.MILLISECONDS.toNanos(Long.getLong("asyncjoke.batchWindow", 2));
+    // Define the largest datagram to pack replies into, small enough to avoid IP fragmentation on Ethernet
+    private static final int MAX_DATAGRAM_SIZE = 1400;
+    // Define the most replies sent in one batch, so that the flows that are due later get their turn soon enough
+    static final int MAX_REPLIES_PER_BATCH = Integer.getInteger("asyncjoke.maxRepliesPerBatch", 256);
+    // Define how close to its deadline a reply has to be for its flow to take its turn first, in nanoseconds
+    private static final long URGENT_WINDOW = TimeUnit.MILLISECONDS.toNanos(Long.getLong("asyncjoke.urgentWindow", 100));
+    // Indicator that every pending reply should be sent right away, set when the server is shutting down
+    private static volatile boolean IS_FAST_FORWARD = false;
+    private final DelayQueue<PendingReply> queue = new DelayQueue<>();
+    // Due replies waiting for their turn, by UUID, only used by this thread
+    private final HashMap<UUID, ReplyFlow> flows = new HashMap<>();
+    // Flows that have due replies, in the order of their turn
+    private final ArrayDeque<ReplyFlow> activeFlows = new ArrayDeque<>();
+    // Number of replies scheduled but not sent yet, including the ones being sent
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    // Number of replies sent so far
+    private final AtomicLong deliveredCount = new AtomicLong();
+    // Number of replies that could not be prepared or sent, and are never sent
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final DatagramChannel outputChannel;
+    private volatile boolean isClosed = false;
+    // Lock held while checking isClosed and scheduling a reply, and while closing, so no reply is scheduled once close() has started
+    private final Object scheduleLock = new Object();
+
+    DeliveryWorker() throws IOException {
+        super("DeliveryWorker");
+        // Create the UDP channel shared by all replies
+        outputChannel = DatagramChannel.open();
+    }
 
-    // Initialize the ClientStatusTable as a Hashtable
-    ClientStatusTable() {
-        csTable = new Hashtable<>();
+    // Getter method of the fast-forward indicator
+    public static boolean isFastForward() {
+        return IS_FAST_FORWARD;
     }
 
-    // Method to add a new user (UUID) into ClientStatusTable
-    public void add(UUID uuid) {
-        // Create the ArrayList to store 2 status tables
-        ArrayList<LinkedList<Integer>> wholeIndexTable = new ArrayList<>();
-        // Create the first status table for proverb
-        wholeIndexTable.add(initializeIndexTable());
-        // Create the second status table for joke
-        wholeIndexTable.add(initializeIndexTable());
-        // Associate the new status tables with UUID
-        csTable.put(uuid, wholeIndexTable);
+    // Method to hand over a reply, returns false if the DeliveryWorker has been closed already
+    public boolean schedule(PendingReply reply) {
+        synchronized (scheduleLock) {
+            if (isClosed) {
+                return false;
+            }
+            pendingCount.incrementAndGet();
+            queue.add(reply);
+            return true;
+        }
     }
 
-    // Method to initialize status table
-    public LinkedList<Integer> initializeIndexTable() {
-        // Create the LinkedList to store 4 indexes
-        LinkedList<Integer> indexTable = new LinkedList<>();
-        for (int i = 0; i < 4; i++) {
-            // Add index 0, 1, 2, 3 into LinkedList sequentially
-            indexTable.add(i);
+    // Method to send every pending reply right away
+    public void fastForward() {
+        IS_FAST_FORWARD = true;
+        wakeUp();
+    }
+
+    // Method to send a reply right away on the shared UDP channel, without any delay or ClientStatusTable change, e.g. to refuse a request
+    public void sendNow(String text, InetAddress toAddr, int toPort) {
+        try {
+            outputChannel.send(ByteBuffer.wrap(text.getBytes()), new InetSocketAddress(toAddr, toPort));
+        } catch (IOException ioe) {
+            System.out.println("Cannot send reply to " + toAddr + ":" + toPort + ". " + ioe);
         }
-        // Randomize the order of indexes
-        Collections.shuffle(indexTable, new Random(System.currentTimeMillis()));
-        return indexTable;
     }
 
-    // Setter method to re-create the index table once a four-item cycle has finished
-    public void setIndexTable(UUID uuid, int index) {
-        // The index values indicates which status table should be re-created, 0 for proverb and 1 for joke
-        csTable.get(uuid).set(index, initializeIndexTable());
+    // Method to get the thread out of waiting for the next due time, without interrupting a send on the channel
+    private void wakeUp() {
+        queue.add(PendingReply.wakeUp());
     }
 
-    // Helper method to check if a UUID is in the ClientStatusTable already
-    public boolean containsUUID(UUID uuid) {
-        return csTable.containsKey(uuid);
+    // Getter method of the number of replies scheduled but not sent yet
+    public int getPendingCount() {
+        return pendingCount.get();
     }
 
-    // Getter method to retrieve the entry of status tables based on UUID
-    public ArrayList<LinkedList<Integer>> getIndexTable(UUID uuid) {
-        return csTable.get(uuid);
+    // Getter method of the number of replies sent so far
+    public long getDeliveredCount() {
+        return deliveredCount.get();
     }
 
-    // Method to remove a entry of status tables based on UUID
-    public void removeIndexTable(UUID uuid) {
-        csTable.remove(uuid);
+    // Getter method of the number of replies that could not be prepared or sent
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    // Method to stop the thread and close the UDP channel, returns the number of replies that will never be sent
+    public int close() {
+        synchronized (scheduleLock) {
+            isClosed = true;
+        }
+        wakeUp();
+        try {
+            join();
+            outputChannel.close();
+        } catch (InterruptedException | IOException e) {
+            e.printStackTrace();
+        }
+        return pendingCount.get();
+    }
+
+    public void run() {
+        ArrayList<PendingReply> batch = new ArrayList<>();
+        while (!isClosed) {
+            try {
+                // Blocking wait for the next reply to come due, unless some due replies are still waiting for their turn
+                if (activeFlows.isEmpty()) {
+                    batch.add(queue.take());
+                }
+            } catch (InterruptedException ie) {
+                continue;
+            }
+            // Take every other reply that is due within the batch window as well, and put each into the flow of its UUID
+            queue.drainTo(batch);
+            for (PendingReply reply : batch) {
+                if (!reply.isWakeUp) {
+                    addToFlow(reply);
+                }
+            }
+            batch.clear();
+            pickFairShare(batch);
+            try {
+                deliverBatch(batch);
+            } finally {
+                pendingCount.addAndGet(-batch.size());
+                batch.clear();
+            }
+        }
+    }
+
+    // Method to put a due reply at the end of the flow of its UUID, the flow gets a turn if it did not have one yet
+    private void addToFlow(PendingReply reply) {
+        ReplyFlow flow = flows.get(reply.uuid);
+        if (flow == null) {
+            flow = new ReplyFlow(reply.uuid, reply.tier.weight);
+            flows.put(reply.uuid, flow);
+            activeFlows.addLast(flow);
+        }
+        flow.replies.addLast(reply);
+    }
+
+    /*
+    Method to pick the replies of the next batch by deficit round robin.
+    A flow at the head of the turn order gets its weight added to its deficit, and sends one reply for every 1 of deficit.
+    A flow left with no replies is dropped along with its deficit, a flow left with replies but no deficit goes to the end of the turn order,
+    and a flow cut short by the end of the batch keeps its place and deficit for the next batch.
+     */
+    private void pickFairShare(ArrayList<PendingReply> batch) {
+        promoteUrgentFlows();
+        while (batch.size() < MAX_REPLIES_PER_BATCH && !activeFlows.isEmpty()) {
+            ReplyFlow flow = activeFlows.peekFirst();
+            if (flow.deficit == 0) {
+                flow.deficit = flow.weight;
+            }
+            while (flow.deficit > 0 && !flow.replies.isEmpty() && batch.size() < MAX_REPLIES_PER_BATCH) {
+                batch.add(flow.replies.pollFirst());
+                flow.deficit--;
+            }
+            if (flow.replies.isEmpty()) {
+                activeFlows.pollFirst();
+                flows.remove(flow.uuid);
+            } else if (flow.deficit == 0) {
+                activeFlows.addLast(activeFlows.pollFirst());
+            }
+        }
+    }
+
+    // Method to move the flows whose next reply is past or near its deadline to the front of the turn order, earliest deadline first
+    // A promoted flow keeps its deficit, so it still sends no more than its weight before the others get their turn
+    private void promoteUrgentFlows() {
+        long urgentTime = System.nanoTime() + URGENT_WINDOW;
+        ArrayList<ReplyFlow> urgentFlows = new ArrayList<>();
+        for (Iterator<ReplyFlow> iterator = activeFlows.iterator(); iterator.hasNext(); ) {
+            ReplyFlow flow = iterator.next();
+            if (flow.replies.peekFirst().deadlineTime - urgentTime <= 0) {
+                urgentFlows.add(flow);
+                iterator.remove();
+            }
+        }
+        // Put the latest deadline at the front first, so the earliest one ends up in front of it
+        urgentFlows.sort((flow1, flow2) -> Long.compare(flow2.replies.peekFirst().deadlineTime, flow1.replies.peekFirst().deadlineTime));
+        for (ReplyFlow flow : urgentFlows) {
+            activeFlows.addFirst(flow);
+        }
+    }
+
+    // Method to prepare every reply of a batch, and send them grouped by client address and port
+    // A reply that cannot be prepared, or a datagram that cannot be sent, is counted as dropped and the rest of the batch goes on
+    private void deliverBatch(ArrayList<PendingReply> batch) {
+        LinkedHashMap<InetSocketAddress, ArrayList<PendingReply>> destinations = new LinkedHashMap<>();
+        for (PendingReply reply : batch) {
+            try {
+                reply.payload = prepare(reply);
+            } catch (RuntimeException re) {
+                System.out.println("Cannot prepare reply to user: " + reply.username + ", UUID: " + reply.uuidString + ", dropped. " + re);
+                droppedCount.incrementAndGet();
+                continue;
+            }
+            destinations.computeIfAbsent(new InetSocketAddress(reply.toAddr, reply.toPort), key -> new ArrayList<>()).add(reply);
+        }
+        ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        for (Map.Entry<InetSocketAddress, ArrayList<PendingReply>> destination : destinations.entrySet()) {
+            ArrayList<PendingReply> replies = destination.getValue();
+            int start = 0;
+            while (start < replies.size()) {
+                int end = start + 1;
+                RequestStageEvent event = RequestStageEvent.begin(RequestStageEvent.UDP_SEND);
+                try {
+                    end = fillDatagram(replies, start, datagram);
+                    // Send packet back to client via UDP
+                    outputChannel.send((end - start == 1) ? ByteBuffer.wrap(replies.get(start).payload) : datagram, destination.getKey());
+                    deliveredCount.addAndGet(end - start);
+                    long sentTime = System.nanoTime();
+                    for (int i = start; i < end; i++) {
+                        replies.get(i).tier.recordDelivery(sentTime - replies.get(i).deadlineTime > 0);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Cannot send " + (end - start) + " reply(s) to " + destination.getKey() + ", dropped. " + e);
+                    droppedCount.addAndGet(end - start);
+                }
+                event.end();
+                for (int i = start; i < end; i++) {
+                    event.commit(replies.get(i).uuidString, replies.get(i).requestId, replies.get(i).mode);
+                }
+                start = end;
+            }
+        }
+    }
+
+    // Method to put the replies from start on into one datagram, returns the index of the first reply left out
+    // A single reply, or a reply without request ID, goes out on its own and unframed, as older clients expect, and is not put into the datagram
+    private int fillDatagram(ArrayList<PendingReply> replies, int start, ByteBuffer datagram) {
+        datagram.clear();
+        int end = start + 1;
+        int size = 16 + frameSize(replies.get(start));
+        if (replies.get(start).requestId != null) {
+            while (end < replies.size() && replies.get(end).requestId != null && size + frameSize(replies.get(end)) <= MAX_DATAGRAM_SIZE) {
+                size += frameSize(replies.get(end));
+                end++;
+            }
+        }
+        if (end - start > 1) {
+            datagram.put(("#batch " + (end - start) + "\n").getBytes());
+            for (int i = start; i < end; i++) {
+                datagram.put((replies.get(i).payload.length + "\n").getBytes());
+                datagram.put(replies.get(i).payload);
+            }
+        }
+        datagram.flip();
+        return end;
+    }
+
+    // Helper method to compute the size of a reply inside a framed datagram
+    private static int frameSize(PendingReply reply) {
+        return Integer.toString(reply.payload.length).length() + 1 + reply.payload.length;
+    }
+
+    // Method to pick the next joke/proverb for a reply that has come due, returns the content of its datagram
+    private byte[] prepare(PendingReply reply) {
+        reply.delayEvent.commit(reply.uuidString, reply.requestId, reply.mode);
+        // Get whole ClientStatusTable
+        ClientStatusTable currentCSTable = AsyncJokeServer.getClientStatusTable();
+        UUID uuid = reply.uuid;
+        int listIndex = reply.listIndex;
+
+        RequestStageEvent event = RequestStageEvent.begin(RequestStageEvent.CLIENT_STATUS_TABLE);
+        // If user is new, which means no data in current ClientStatusTable
+        if (!currentCSTable.containsUUID(uuid)) {
+            // Add new entries to ClientStatusTable
+            currentCSTable.add(uuid);
+        }
+
+        // Pop out the index value at the top of the index table based on UUID and the AsyncJokeServer mode of the request
+        int itemCount = reply.catalog.getItemCount(listIndex);
+        int currentIndex = currentCSTable.popIndex(uuid, listIndex, itemCount);
+        event.commit(reply.uuidString, reply.requestId, reply.mode);
+        // Get the joke/proverb list based on the AsyncJokeServer mode of the request
+        List<Data> currentList = reply.catalog.getList(listIndex);
+
+        // Compose result string
+        event = RequestStageEvent.begin(RequestStageEvent.MAKE_RETURN_STRING);
+        String result = Worker.makeReturnString(currentList, currentIndex, reply.username);
+        event.commit(reply.uuidString, reply.requestId, reply.mode);
+
+        // Print info to user
+        System.out.println("Send result string below (" + reply.mode + ", catalog version " + reply.catalog.getVersion() + ") back to user: " + reply.username + ", UUID: " + reply.uuidString);
+        // Print result string on server console for reference
+        System.out.println(result);
+        System.out.println();
+
+        // If the index table is empty, so the last index has been poped out, which means a cycle has finished
+        if (currentCSTable.isCycleFinished(uuid, listIndex)) {
+            // Print some info on server console for reference
+            String state = reply.mode.getName();
+            System.out.println("UUID: " + reply.uuidString + " Has finished a " + itemCount + "-item " + state + " cycle.");
+            System.out.println("List of " + state + " re-randomized for UUID: " + reply.uuidString);
+            System.out.println();
+            // Re-initialize the empty index table with all indexes
+            currentCSTable.setIndexTable(uuid, listIndex, itemCount);
+        }
+
+        // Send result string back to client, after the request ID and the mode epoch on their own line if the client sent a request ID
+        return (reply.requestId == null ? result : reply.requestId + " " + reply.mode.epoch + "\n" + result).getBytes();
     }
 }
 
 // Worker class to handle client requests, each worker class will run on a new thread
 class Worker extends Thread {
+    // Longest username and request ID accepted, in characters, a longer one gets an error reply right away instead of a joke/proverb
+    static final int MAX_FIELD_LENGTH = 64;
     Socket sock;
     InetAddress toAddr;
     int toPort;
-    DatagramSocket outputSock;
-    DatagramPacket outputPacket;
+    // Event timing the accept stage, from accepting the connection until this thread starts running
+    RequestStageEvent acceptEvent = RequestStageEvent.begin(RequestStageEvent.ACCEPT);
+    // Time the connection was accepted, the delay and deadline of the reply are counted from here
+    long acceptTime = System.nanoTime();
 
-    // Constructor to initialize socket
+    // Constructor to initialize socket, the request counts as in flight from the moment it has been accepted
     Worker(Socket s) {
         sock = s;
+        AsyncJokeServer.startRequest();
     }
 
     // Define the behavior of a running thread
     public void run() {
         BufferedReader in = null;
-        // Decide the value of list index based on the mode of JokerServer, this determine which ClientStatusTable will be used
-        int listIndex = (AsyncJokeServer.getIsJoke()) ? 1 : 0;
+        // Pick up the current mode once, its list index determines which status table will be used, even if the mode changes in the meantime
+        ServerMode mode = AsyncJokeServer.getServerMode();
+        // Pick up the current Catalog, this request is served from it even if a new one is published in the meantime
+        Catalog catalog = AsyncJokeServer.getCatalog();
         String username;
         UUID uuid;
         String uuidString;
-        String result;
+        String requestId;
         // Get the address of client
         toAddr = sock.getInetAddress();
         // Get the UDP server port on client side, which is the same as the TCP port on the server side
         toPort = sock.getLocalPort();
-        // Byte buffer to hold UDP packet content
-        byte[] buf;
+        acceptEvent.end();
+        RequestStageEvent parseEvent = RequestStageEvent.begin(RequestStageEvent.PARSE);
 
         try {
             // Initialize the input stream of the socket as BufferedReader
             in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            // Get whole ClientStatusTable
-            ClientStatusTable currentCSTable = AsyncJokeServer.getClientStatusTable();
 
             try {
                 // Read first line of input from input stream as username
                 username = in.readLine();
                 // Read second line of input from input stream as user's UUID in string format
                 uuidString = in.readLine();
+                // Read optional third line of input from input stream as request ID, which is sent back with the reply
+                // A client may send the same request to several servers with the same request ID, and keep the first reply
+                requestId = in.readLine();
+                if (requestId != null && requestId.isEmpty()) {
+                    requestId = null;
+                }
                 // Break connection after receive request
                 sock.close();
 
-                // Received shutdown signal from Admin server
-                if (username.isEmpty() && uuidString.isEmpty()) {
-                    AsyncJokeServer.setIsRunningFalse();
+                // Connection closed before a whole request was received
+                if (username == null || uuidString == null) {
+                    System.out.println("Incomplete request received, ignored.");
+                    return;
+                }
+                if (username.length() > MAX_FIELD_LENGTH || (requestId != null && requestId.length() > MAX_FIELD_LENGTH)) {
+                    System.out.println("Request with a username or request ID longer than " + MAX_FIELD_LENGTH + " characters received, refused.");
+                    String result = "Error! Username and request ID cannot be longer than " + MAX_FIELD_LENGTH + " characters.";
+                    // Same first line as a regular reply, so the client can match the error with its request
+                    AsyncJokeServer.getDeliveryWorker().sendNow(requestId == null ? result : requestId + " " + mode.epoch + "\n" + result, toAddr, toPort);
                     return;
                 }
 
                 // Convert the UUID string into UUID
                 uuid = UUID.fromString(uuidString);
+                acceptEvent.commit(uuidString, requestId, mode);
+                parseEvent.commit(uuidString, requestId, mode);
                 // Print client info
-                System.out.println("Request received from user: " + username + ", UUID: " + uuidString + ". Processing...");
-                // Make server thread sleep after receiving request from client
-                Thread.sleep(AsyncJokeServer.getSleepInterval());
-
-                // If user is new, which means no data in current ClientStatusTable
-                if (!currentCSTable.containsUUID(uuid)) {
-                    // Add new entries to ClientStatusTable
-                    currentCSTable.add(uuid);
-                }
-
-                // Get the index table based on UUID and current AsyncJokeServer mode
-                LinkedList<Integer> currentIndexTable = currentCSTable.getIndexTable(uuid).get(listIndex);
-                // Pop out the index value at the top
-                int currentIndex = currentIndexTable.pop();
-                // Get the joke/proverb list based on current AsyncJokeServer mode
-                LinkedList<Data> currentList = AsyncJokeServer.getWholeList().get(listIndex);
-
-                // Compose result string
-                result = makeReturnString(currentList, currentIndex, username);
-
-                // Send result string back to client
-                buf = result.getBytes();
-                // Create UDP socket
-                outputSock = new DatagramSocket();
-                // Create UDP packet to send to client
-                outputPacket = new DatagramPacket(buf, buf.length, toAddr, toPort);
-                // Send packet back to client via UDP
-                outputSock.send(outputPacket);
-
-                // Print info to user
-                System.out.println("Send result string below back to user: " + username + ", UUID: " + uuidString);
-                // Print result string on server console for reference
-                System.out.println(result);
-                System.out.println();
-
-                // If the index table is empty, so the last index has been poped out, which means a four-item cycle has finished
-                if (currentIndexTable.isEmpty()) {
-                    // Print some info on server console for reference
-                    String state = (AsyncJokeServer.getIsJoke()) ? "joke" : "proverb";
-                    System.out.println("UUID: " + uuidString + " Has finished a four-item " + state + " cycle.");
-                    System.out.println("List of " + state + " re-randomized for UUID: " + uuidString);
-                    System.out.println();
-                    // Re-initialize the empty index table with 4 indexes
-                    currentCSTable.setIndexTable(uuid, listIndex);
+                System.out.println("Request received from user: " + username + ", UUID: " + uuidString + (requestId == null ? "" : ", request ID: " + requestId) + " in " + mode + ". Processing...");
+                // Hand the request over to the DeliveryWorker, which sends the reply once the delay of the tier of this client is over
+                DeliveryTier tier = AsyncJokeServer.getTier(username, uuidString);
+                RequestStageEvent scheduleEvent = RequestStageEvent.begin(RequestStageEvent.DELAY_SCHEDULED);
+                PendingReply reply = new PendingReply(username, uuid, uuidString, requestId, mode, catalog, toAddr, toPort, tier, acceptTime);
+                boolean isScheduled = AsyncJokeServer.getDeliveryWorker().schedule(reply);
+                scheduleEvent.commit(uuidString, requestId, mode);
+                if (!isScheduled) {
+                    System.out.println("Server shutting down, request from user: " + username + ", UUID: " + uuidString + " dropped.");
                 }
             } catch (IOException ioe) {
                 ioe.printStackTrace();
-            } catch (InterruptedException ie) {
-                ie.printStackTrace();
             }
 
         } catch (IOException ioe) {
             // In case anything wrong with the socket
             System.out.println(ioe);
+        } finally {
+            AsyncJokeServer.finishRequest();
         }
     }
 
     // Method to compose the result string that will be send back to client
-    static String makeReturnString(LinkedList<Data> list, int index, String username) {
+    static String makeReturnString(List<Data> list, int index, String username) {
         // Use a StringBuffer to manipulate Strings
         StringBuffer result = new StringBuffer();
         // Get the joke/proverb from the joke/proverb list based on the index
@@ -371,34 +2305,170 @@ class Worker extends Thread {
 public class AsyncJokeServer {
     // Define default server port number
     private static final int DEFAULT_PORT = 7687;
-    // Boolean value indicating if the server is running in joke mode
-    private static boolean IS_JOKE = true;
-    // LinkedList to store all jokes
-    private static LinkedList<Data> JOKE_LIST = new LinkedList<>();
-    // LinkedList to store all proverbs
-    private static LinkedList<Data> PROVERB_LIST = new LinkedList<>();
-    // ArrayList of LinkedList that will put above two LinkedLists together
-    private static ArrayList<LinkedList<Data>> WHOLE_LIST = new ArrayList<>();
+    // Define default number of slots of a new MappedClientStatusTable file
+    private static final long DEFAULT_TABLE_SLOTS = 1 << 20;
+    // Current mode of the server, replaced as a whole on every mode change, starts in joke mode if there is such a category
+    private static final AtomicReference<ServerMode> SERVER_MODE = new AtomicReference<>(new ServerMode(1, Math.max(Arrays.asList(Catalog.CATEGORY_NAMES).indexOf("joke"), 0)));
+    // Define default file to reload the Catalog from
+    private static final String DEFAULT_CATALOG_FILE = "AsyncJokeCatalog.txt";
+    // Catalog of all jokes/proverbs currently in use, replaced as a whole when a new one is loaded
+    private static volatile Catalog CATALOG;
     // Global ClientStatusTable
     private static ClientStatusTable CLIENT_STATUS_TABLE;
-    private static boolean IS_RUNNING = true;
+    // Global DeliveryWorker that sends every reply once its delay is over
+    private static DeliveryWorker DELIVERY_WORKER;
+    // Number of requests accepted but not handed over to the DeliveryWorker yet
+    private static final AtomicInteger IN_FLIGHT = new AtomicInteger();
+    private static volatile boolean IS_RUNNING = true;
+    private static ServerSocket SERVER_SOCKET;
     private static int SERVER_PORT = 0;
     private static int ADMIN_PORT = 0;
-    // Define thread sleep interval value
-    private static int SLEEP_INTERVAL = 40000;
+    // Define the delay in milliseconds of the default tier, used when -Dasyncjoke.tiers is not given
+    private static int DEFAULT_TIER_DELAY = 40000;
+    // Tiers of delivery, the first one is the default tier
+    private static List<DeliveryTier> DELIVERY_TIERS;
+    // Tiers of delivery of the clients that are not in the default tier, by username or UUID
+    private static Map<String, DeliveryTier> CLIENT_TIERS;
+
+    // Method to change the server mode to the next category, returns the new mode
+    public static ServerMode toggleServerMode() {
+        return SERVER_MODE.updateAndGet(ServerMode::next);
+    }
+
+    // Method to change the server mode to the given category, returns the new mode, or null if there is no such category
+    // Switching to the current category leaves the mode and its epoch as they are
+    public static ServerMode setServerMode(String name) {
+        int listIndex = Arrays.asList(Catalog.CATEGORY_NAMES).indexOf(name.toLowerCase());
+        if (listIndex == -1) {
+            return null;
+        }
+        return SERVER_MODE.updateAndGet(mode -> (mode.listIndex == listIndex) ? mode : new ServerMode(mode.epoch + 1, listIndex));
+    }
+
+    // Getter method of the server mode
+    public static ServerMode getServerMode() {
+        return SERVER_MODE.get();
+    }
+
+    // Method called by a Worker once a request has been accepted
+    public static void startRequest() {
+        IN_FLIGHT.incrementAndGet();
+    }
+
+    // Method called by a Worker once a request has been handed over to the DeliveryWorker, or given up
+    public static void finishRequest() {
+        IN_FLIGHT.decrementAndGet();
+    }
+
+    // Getter method of the global DeliveryWorker
+    public static DeliveryWorker getDeliveryWorker() {
+        return DELIVERY_WORKER;
+    }
 
-    // Method to change the server mode indicator
-    public static void toggleIsJoke() {
-        IS_JOKE = !IS_JOKE;
+    // Getter method of the default time to wait for pending replies on shutdown, long enough for a reply accepted right before it in the slowest tier
+    public static long getDrainTimeout() {
+        long longestDelay = 0;
+        for (DeliveryTier tier : DELIVERY_TIERS) {
+            longestDelay = Math.max(longestDelay, tier.delay);
+        }
+        return Long.getLong("asyncjoke.drainTimeout", longestDelay + 5000L);
     }
 
-    // Getter method of the server mode indicator
-    public static boolean getIsJoke() {
-        return IS_JOKE;
+    // Method to find the tier of delivery of a client, by UUID first, then by username, then the default tier
+    public static DeliveryTier getTier(String username, String uuidString) {
+        DeliveryTier tier = CLIENT_TIERS.get(uuidString);
+        if (tier == null) {
+            tier = CLIENT_TIERS.get(username);
+        }
+        return (tier == null) ? DELIVERY_TIERS.get(0) : tier;
     }
 
-    public static void setIsRunningFalse() {
+    /*
+    Method to shut the server down gracefully, returns a summary that is sent back to the Admin client.
+    1. Stop accepting: close both server sockets, which gets the blocking accept() loops out of their waiting status.
+    2. Drain: wait for the Workers still reading a request, and for the DeliveryWorker to send every pending reply,
+    until the deadline. With fast-forward, pending replies are sent right away instead of waiting for their delay.
+    3. Close: stop the DeliveryWorker, count what is left as dropped, and save the ClientStatusTable.
+     */
+    public static synchronized String shutdown(long drainTimeout, boolean isFastForward) {
+        if (!IS_RUNNING) {
+            return "Server is already shutting down.";
+        }
+        if (DELIVERY_WORKER == null) {
+            return "Server is still starting up.";
+        }
         IS_RUNNING = false;
+        try {
+            SERVER_SOCKET.close();
+        } catch (IOException ioe) {
+            System.out.println(ioe);
+        }
+        AdminServer.stop();
+        System.out.println("AsyncJokeServer shutting down, draining " + DELIVERY_WORKER.getPendingCount() + " pending reply(s)...");
+
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        long deliveredBefore = DELIVERY_WORKER.getDeliveredCount();
+        long droppedBefore = DELIVERY_WORKER.getDroppedCount();
+        if (isFastForward) {
+            DELIVERY_WORKER.fastForward();
+        }
+        try {
+            while ((IN_FLIGHT.get() > 0 || DELIVERY_WORKER.getPendingCount() > 0) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+        } catch (InterruptedException ie) {
+            ie.printStackTrace();
+        }
+        long dropped = DELIVERY_WORKER.close() + IN_FLIGHT.get() + DELIVERY_WORKER.getDroppedCount() - droppedBefore;
+        long drained = DELIVERY_WORKER.getDeliveredCount() - deliveredBefore;
+        long missed = 0;
+        for (DeliveryTier tier : DELIVERY_TIERS) {
+            System.out.println("Tier " + tier);
+            missed += tier.getMissedCount();
+        }
+
+        // Save the ClientStatusTable so that every user can continue the cycle after a restart
+        CLIENT_STATUS_TABLE.close();
+        String result = "Server shutdown: " + drained + " pending reply(s) drained, " + dropped + " dropped, " + missed + " reply(s) sent after their deadline.";
+        System.out.println(result);
+        System.out.println("AsyncJokeServer shutdown!");
+        return result;
+    }
+
+    /*
+    Method to report the resources used by the server, as "stats" followed by space-separated <name>=<value> pairs so that tools can read them.
+    threads and peakThreads are live and peak JVM threads, fds is the number of open file descriptors (-1 where /proc/self/fd does not exist),
+    mode and epoch are the current ServerMode, heapUsed and heapCommitted are in bytes,
+    and pending, delivered, dropped and missed count the replies scheduled, sent, never sent because of an error, and sent after their deadline.
+    drainTimeout is how long, in milliseconds, a shutdown without a number of seconds waits for the pending replies.
+     */
+    public static String getStats() {
+        if (DELIVERY_WORKER == null) {
+            return "Server is still starting up.";
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        String[] fds = new File("/proc/self/fd").list();
+        Runtime runtime = Runtime.getRuntime();
+        long missed = 0;
+        for (DeliveryTier tier : DELIVERY_TIERS) {
+            missed += tier.getMissedCount();
+        }
+        ServerMode mode = SERVER_MODE.get();
+        return "stats mode=" + mode.getName()
+                + " epoch=" + mode.epoch
+                + " cores=" + runtime.availableProcessors()
+                + " threads=" + threads.getThreadCount()
+                + " peakThreads=" + threads.getPeakThreadCount()
+                + " fds=" + (fds == null ? -1 : fds.length)
+                + " heapUsed=" + (runtime.totalMemory() - runtime.freeMemory())
+                + " heapCommitted=" + runtime.totalMemory()
+                + " users=" + CLIENT_STATUS_TABLE.size()
+                + " inFlight=" + IN_FLIGHT.get()
+                + " pending=" + DELIVERY_WORKER.getPendingCount()
+                + " delivered=" + DELIVERY_WORKER.getDeliveredCount()
+                + " dropped=" + DELIVERY_WORKER.getDroppedCount()
+                + " missed=" + missed
+                + " drainTimeout=" + getDrainTimeout();
     }
 
     // Getter method of the global ClientStatusTable
@@ -406,9 +2476,20 @@ public class AsyncJokeServer {
         return CLIENT_STATUS_TABLE;
     }
 
-    // Getter method of the Array of all jokes/proverbs
-    public static ArrayList<LinkedList<Data>> getWholeList() {
-        return WHOLE_LIST;
+    // Getter method of the Catalog of all jokes/proverbs
+    public static Catalog getCatalog() {
+        return CATALOG;
+    }
+
+    // Method to load a new Catalog from a file and publish it, returns the new Catalog
+    // Only reloads are serialized here, requests just read the volatile reference
+    public static synchronized Catalog reloadCatalog(String fileName) throws IOException {
+        if (fileName == null || fileName.isEmpty()) {
+            fileName = DEFAULT_CATALOG_FILE;
+        }
+        Catalog catalog = Catalog.load(fileName, CATALOG.getVersion() + 1, CLIENT_STATUS_TABLE.getMaxItemCount());
+        CATALOG = catalog;
+        return catalog;
     }
 
     // Getter method of the server port number
@@ -421,25 +2502,35 @@ public class AsyncJokeServer {
         return ADMIN_PORT;
     }
 
-    // Getter method of the server thread sleep interval value
-    public static int getSleepInterval() {
-        return SLEEP_INTERVAL;
-    }
-
     // Method to initialize all jokes/proverbs
     public static void initializeData() {
-        JOKE_LIST.add(new Data("JA", "Apparently I snore so loudly that it scares everyone in the car I'm driving."));
-        JOKE_LIST.add(new Data("JB", "Relationships are a lot like algebra. Have you ever looked at your X and wondered Y?"));
-        JOKE_LIST.add(new Data("JC", "I started out with nothing, and I still have most of it."));
-        JOKE_LIST.add(new Data("JD", "Artificial intelligence is no match for natural stupidity."));
-        PROVERB_LIST.add(new Data("PA", "The pen is mightier than the sword."));
-        PROVERB_LIST.add(new Data("PB", "Hope for the best, but prepare for the worst."));
-        PROVERB_LIST.add(new Data("PC", "The early bird catches the worm."));
-        PROVERB_LIST.add(new Data("PD", "You can't judge a book by its cover."));
-        // List of proverbs placed at index 0
-        WHOLE_LIST.add(PROVERB_LIST);
-        // List of jokes placed at index 1
-        WHOLE_LIST.add(JOKE_LIST);
+        // List to store all jokes
+        ArrayList<Data> jokeList = new ArrayList<>();
+        // List to store all proverbs
+        ArrayList<Data> proverbList = new ArrayList<>();
+        // List of lists that will put above two lists together
+        ArrayList<List<Data>> wholeList = new ArrayList<>();
+        jokeList.add(new Data("JA", "Apparently I snore so loudly that it scares everyone in the car I'm driving."));
+        jokeList.add(new Data("JB", "Relationships are a lot like algebra. Have you ever looked at your X and wondered Y?"));
+        jokeList.add(new Data("JC", "I started out with nothing, and I still have most of it."));
+        jokeList.add(new Data("JD", "Artificial intelligence is no match for natural stupidity."));
+        proverbList.add(new Data("PA", "The pen is mightier than the sword."));
+        proverbList.add(new Data("PB", "Hope for the best, but prepare for the worst."));
+        proverbList.add(new Data("PC", "The early bird catches the worm."));
+        proverbList.add(new Data("PD", "You can't judge a book by its cover."));
+        // Place each list at the list index of its category, there are only built-in items for proverbs and jokes
+        for (String name : Catalog.CATEGORY_NAMES) {
+            if (name.equals("proverb")) {
+                wholeList.add(proverbList);
+            } else if (name.equals("joke")) {
+                wholeList.add(jokeList);
+            } else {
+                // Other categories have to be loaded from the catalog file once the ClientStatusTable is ready
+                return;
+            }
+        }
+        // The built-in jokes/proverbs are version 1 of the Catalog
+        CATALOG = new Catalog(1, wholeList);
     }
 
     public static void main(String[] args) throws IOException {
@@ -458,8 +2549,8 @@ public class AsyncJokeServer {
             try {
                 // If it is a number, then success
                 SERVER_PORT = Integer.parseInt(args[0]);
-                // Set thread sleep time interval value differently
-                SLEEP_INTERVAL = 70000;
+                // Set the delay of the default tier differently
+                DEFAULT_TIER_DELAY = 70000;
             } catch (NumberFormatException nfe) {
                 // Output status to console
                 System.out.println("Error! Please enter a valid number as port number!");
@@ -469,6 +2560,20 @@ public class AsyncJokeServer {
         // Arbitrarily determine the port number of Admin server
         ADMIN_PORT = SERVER_PORT + 1;
 
+        // Read the tiers of delivery, by default a single tier with the sleep interval as delay, and 5 seconds more as deadline
+        try {
+            DELIVERY_TIERS = DeliveryTier.parseTiers(System.getProperty("asyncjoke.tiers", "standard:" + DEFAULT_TIER_DELAY + ":" + (DEFAULT_TIER_DELAY + 5000) + ":1"));
+            CLIENT_TIERS = DeliveryTier.parseClientTiers(System.getProperty("asyncjoke.clientTiers", ""), DELIVERY_TIERS);
+        } catch (IllegalArgumentException iae) {
+            System.out.println("Error! " + iae.getMessage());
+            System.exit(1);
+        }
+        // A batch has to take at least one reply, or the DeliveryWorker would spin without ever sending anything
+        if (DeliveryWorker.MAX_REPLIES_PER_BATCH <= 0) {
+            System.out.println("Error! asyncjoke.maxRepliesPerBatch must be at least 1.");
+            System.exit(1);
+        }
+
         // Create an new Admin server object
         AdminServer adminServer = new AdminServer();
         // Create a new thread to run the Admin server
@@ -478,25 +2583,60 @@ public class AsyncJokeServer {
 
         // Initialize all jokes/proverbs
         initializeData();
-        // Initialize global ClientStatusTable
-        CLIENT_STATUS_TABLE = new ClientStatusTable();
+        // Initialize global ClientStatusTable, either from the table file of this port,
+        // or from the snapshot and log files of this port, if there are any
+        try {
+            if (System.getProperty("asyncjoke.store", "heap").equalsIgnoreCase("mapped")) {
+                CLIENT_STATUS_TABLE = MappedClientStatusTable.open("AsyncJokeServer-" + SERVER_PORT + ".table", Long.getLong("asyncjoke.tableSlots", DEFAULT_TABLE_SLOTS));
+                System.out.println("MappedClientStatusTable opened with " + CLIENT_STATUS_TABLE.size() + " user(s).");
+            } else {
+                CLIENT_STATUS_TABLE = ClientStatusLog.restore("AsyncJokeServer-" + SERVER_PORT);
+            }
+        } catch (IOException ioe) {
+            System.out.println("Fatal Error: cannot restore ClientStatusTable! " + ioe);
+            System.exit(1);
+        }
+        if (Catalog.CATEGORY_NAMES.length > CLIENT_STATUS_TABLE.getMaxCategoryCount()) {
+            System.out.println("Fatal Error: this ClientStatusTable can only keep track of " + CLIENT_STATUS_TABLE.getMaxCategoryCount() + " categories!");
+            System.exit(1);
+        }
+        // Without built-in items for every category, version 1 of the Catalog comes from the catalog file
+        if (CATALOG == null) {
+            try {
+                CATALOG = Catalog.load(System.getProperty("asyncjoke.catalog", DEFAULT_CATALOG_FILE), 1, CLIENT_STATUS_TABLE.getMaxItemCount());
+            } catch (IOException ioe) {
+                System.out.println("Fatal Error: cannot load the catalog file for categories " + String.join(", ", Catalog.CATEGORY_NAMES) + "! " + ioe.getMessage());
+                System.exit(1);
+            }
+        }
+        System.out.println("AsyncJokeServer running in " + SERVER_MODE.get() + ", catalog version " + CATALOG.getVersion() + " with " + CATALOG.describeItemCounts() + ".");
 
         try {
             Socket sock;
             // Initialize a new server type socket using port number and queue length
             ServerSocket servSock = new ServerSocket(SERVER_PORT, q_len);
+            SERVER_SOCKET = servSock;
+            // Start the DeliveryWorker that sends the replies
+            DELIVERY_WORKER = new DeliveryWorker();
+            DELIVERY_WORKER.start();
             // Print server info
             System.out.println("Mingfei Shao's AsyncJokeServer starting up, listening at port " + SERVER_PORT + ".");
             System.out.println();
 
-            // Stick here to serve any incoming clients
+            // Stick here to serve any incoming clients, until the socket is closed by shutdown()
             while (IS_RUNNING) {
                 // Wait for client to connect
                 sock = servSock.accept();
                 // After connected, start a new worker thread to handle client's request, and main thread stays in the loop, waiting for next client
                 new Worker(sock).start();
             }
-            System.out.println("AsyncJokeServer shutdown!");
+        } catch (SocketException se) {
+            // The socket has been closed by shutdown(), which takes care of the rest
+            if (!IS_RUNNING) {
+                return;
+            }
+            System.out.println("Fatal Error: cannot open socket!");
+            System.exit(1);
         } catch (IllegalArgumentException iae) {
             System.out.println("Fatal Error: port number is not valid!");
             System.exit(1);
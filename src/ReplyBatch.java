@@ -0,0 +1,64 @@
+/*--------------------------------------------------------
+
+1. AsyncJoke contributors / 10/19/2026, added to the AsyncJoke programs written by Mingfei Shao (11/06/2016):
+
+2. Java version used: Java 8 or later
+
+3. Precise command-line compilation examples / instructions:
+> javac ReplyBatch.java
+or let javac pick it up when compiling AsyncJokeClient.java or AsyncJokeBenchmark.java from the same directory.
+
+4. Precise examples / instructions to run this program:
+This is not a program on its own, it is used by AsyncJokeClient and AsyncJokeBenchmark.
+
+5. List of files needed for running the program:
+a. AsyncJokeClient.java
+b. AsyncJokeBenchmark.java
+c. ReplyBatch.java
+
+5. Notes:
+a. ReplyBatch reads the packets sent by the DeliveryWorker of AsyncJokeServer. A packet holds either a single reply as it is,
+or several replies to the same client framed as "#batch <count>" on the first line, then for each reply its length in bytes
+on its own line followed by the reply itself.
+b. It lives in its own file so that every program receiving replies can share it.
+
+----------------------------------------------------------*/
+
+import java.util.ArrayList;
+
+class ReplyBatch {
+    // Header on the first line of a packet holding several replies
+    private static final String HEADER = "#batch ";
+
+    // Method to split a packet into replies, a packet without the header is a single reply
+    static ArrayList<String> split(byte[] data, int length) {
+        ArrayList<String> replies = new ArrayList<>();
+        if (length < HEADER.length() || !new String(data, 0, HEADER.length()).equals(HEADER)) {
+            replies.add(new String(data, 0, length));
+            return replies;
+        }
+        try {
+            int pos = indexOfLineBreak(data, 0, length);
+            int count = Integer.parseInt(new String(data, HEADER.length(), pos - HEADER.length()));
+            for (int i = 0; i < count; i++) {
+                int lineBreak = indexOfLineBreak(data, pos + 1, length);
+                int frameLength = Integer.parseInt(new String(data, pos + 1, lineBreak - pos - 1));
+                replies.add(new String(data, lineBreak + 1, frameLength));
+                pos = lineBreak + frameLength;
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            System.out.println("Malformed batch of replies received, the rest of it is ignored.");
+        }
+        return replies;
+    }
+
+    // Helper method to find the next line break in a packet
+    private static int indexOfLineBreak(byte[] data, int from, int length) {
+        for (int i = from; i < length; i++) {
+            if (data[i] == '\n') {
+                return i;
+            }
+        }
+        throw new IndexOutOfBoundsException("No line break");
+    }
+}